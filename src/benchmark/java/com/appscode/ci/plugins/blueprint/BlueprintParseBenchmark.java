@@ -0,0 +1,54 @@
+package com.appscode.ci.plugins.blueprint;
+
+import com.appscode.ci.model.blueprint.Blueprint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * YAML parsing done by {@link Blueprints#load}, with and without a hit in the parse cache.
+ */
+@State(Scope.Benchmark)
+public class BlueprintParseBenchmark {
+
+    @Param({"1", "20"})
+    public int jobs;
+
+    private String yaml;
+    private long revision;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder s = new StringBuilder("jobs:\n");
+        for (int i = 0; i < jobs; i++) {
+            s.append("- name: job-").append(i).append('\n');
+            s.append("  script: |\n");
+            s.append("    ./gradlew clean build\n");
+            s.append("    ./deploy.sh ${BUILD_NUMBER}\n");
+            s.append("  docker:\n");
+            s.append("    image: appscode/gradle:").append(i).append('\n');
+            s.append("    privileged: true\n");
+            s.append("    memory: 2g\n");
+            s.append("    volumes:\n");
+            s.append("    - hostPath: /var/cache/gradle\n");
+            s.append("      path: /root/.gradle\n");
+        }
+        yaml = s.toString();
+        Blueprints.parse(yaml);
+    }
+
+    @Benchmark
+    public Blueprint cached() throws IOException {
+        return Blueprints.parse(yaml);
+    }
+
+    @Benchmark
+    public Blueprint uncached() throws IOException {
+        // a new revision of the file each time, as after every commit touching it
+        return Blueprints.parse(yaml + "# " + revision++ + "\n");
+    }
+}
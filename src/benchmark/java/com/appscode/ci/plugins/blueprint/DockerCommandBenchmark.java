@@ -0,0 +1,69 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.util.ArgumentListBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Command lines built by {@link Docker#runDetached(ContainerSpec)} and {@link Docker#executeIn}, the latter once
+ * per launch.
+ */
+@State(Scope.Benchmark)
+public class DockerCommandBenchmark {
+
+    @Param({"50", "500"})
+    public int variables;
+
+    private Docker docker;
+    private Launcher launcher;
+    private ContainerSpec spec;
+    private EnvVars environment;
+
+    @Setup
+    public void setUp() {
+        environment = new EnvVars();
+        Set<String> sensitive = new HashSet<String>();
+        for (int i = 0; i < variables; i++) {
+            environment.put("VARIABLE_" + i, "value of variable " + i);
+            if (i % 10 == 0) {
+                sensitive.add("VARIABLE_" + i);
+            }
+        }
+        Map<String, String> volumes = new HashMap<String, String>();
+        volumes.put("/var/lib/jenkins", "/var/lib/jenkins");
+        volumes.put("/tmp", "/tmp");
+        volumes.put("/mnt/ci-data/42/build-data", "/mnt/build-data");
+        volumes.put("/var/lib/jenkins/.m2", "/root/.m2");
+
+        launcher = new FakeLauncher("0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef\n");
+        docker = new Docker("slave1", "docker", launcher, new EnvVars(), false);
+        spec = new ContainerSpec("appscode/gradle:latest", "/var/lib/jenkins/workspace/job", volumes,
+                Collections.<Integer, Integer>emptyMap(), Collections.<String, String>emptyMap(),
+                environment, sensitive, "host", "2g", null, "/bin/cat");
+    }
+
+    @Benchmark
+    public ArgumentListBuilder runDetachedCommand() {
+        return docker.runDetachedCommand(spec, null, "instance");
+    }
+
+    @Benchmark
+    public List<String> executeIn() throws IOException, InterruptedException {
+        Launcher.ProcStarter starter = launcher.launch().cmds("/bin/sh", "-xe", "/tmp/hudson123.sh");
+        docker.executeIn("0123456789ab", "1000:1000", starter, environment);
+        return starter.cmds();
+    }
+}
@@ -0,0 +1,75 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.EnvVars;
+import hudson.model.Environment;
+import hudson.model.TaskListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Environment merged by {@link DockerLauncher} on each launch, and volumes expanded by
+ * {@link BuiltInContainer#getVolumes(hudson.model.AbstractBuild)}.
+ */
+@State(Scope.Benchmark)
+public class EnvironmentBenchmark {
+
+    @Param({"50", "500"})
+    public int variables;
+
+    @Param({"1", "10"})
+    public int wrappers;
+
+    private EnvVars containerEnv;
+    private EnvVars overlay;
+    private List<Environment> environments;
+    private Map<String, String> volumes;
+
+    @Setup
+    public void setUp() {
+        containerEnv = new EnvVars();
+        containerEnv.put("PATH", "/usr/local/sbin:/usr/local/bin:/usr/sbin:/usr/bin:/sbin:/bin");
+        overlay = new EnvVars();
+        for (int i = 0; i < variables; i++) {
+            containerEnv.put("CONTAINER_" + i, "value " + i);
+            overlay.put("BUILD_" + i, "value " + i);
+        }
+
+        environments = new ArrayList<Environment>();
+        for (int i = 0; i < wrappers; i++) {
+            final String key = "WRAPPER_" + i;
+            environments.add(new Environment() {
+                @Override
+                public void buildEnvVars(Map<String, String> env) {
+                    env.put(key, "set by wrapper");
+                }
+            });
+        }
+
+        volumes = new HashMap<String, String>();
+        volumes.put("/var/lib/jenkins", "/var/lib/jenkins");
+        volumes.put("/mnt/ci-data/${BUILD_NUMBER}/build-data", "/mnt/build-data");
+        volumes.put("${JENKINS_HOME}/.m2", "/root/.m2");
+        volumes.put("/var/cache/${JOB_NAME}", "/cache");
+        overlay.put("BUILD_NUMBER", "42");
+        overlay.put("JENKINS_HOME", "/var/lib/jenkins");
+        overlay.put("JOB_NAME", "job");
+    }
+
+    @Benchmark
+    public EnvVars mergeEnvironment() {
+        return DockerLauncher.mergeEnvironment(containerEnv, overlay, environments, TaskListener.NULL);
+    }
+
+    @Benchmark
+    public Map<String, String> expandVolumes() {
+        return BuiltInContainer.expandVolumes(volumes, overlay);
+    }
+}
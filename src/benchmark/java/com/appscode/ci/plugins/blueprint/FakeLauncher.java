@@ -0,0 +1,75 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Launcher which doesn't start anything: processes complete immediately, writing a canned output as a fake
+ * <code>docker</code> executable would, so benchmarks only measure the plugin's own overhead.
+ */
+final class FakeLauncher extends Launcher {
+
+    private final byte[] output;
+
+    FakeLauncher(String output) {
+        super(TaskListener.NULL, null);
+        this.output = output.getBytes();
+    }
+
+    @Override
+    public Proc launch(ProcStarter starter) throws IOException {
+        if (starter.stdout() != null) {
+            starter.stdout().write(output);
+        }
+        return new CompletedProc();
+    }
+
+    @Override
+    public Channel launchChannel(String[] cmd, OutputStream out, FilePath workDir, Map<String, String> envVars) throws IOException {
+        // benchmarks never open a channel
+        return null;
+    }
+
+    @Override
+    public void kill(Map<String, String> modelEnvVars) {
+    }
+
+    private static final class CompletedProc extends Proc {
+        @Override
+        public boolean isAlive() {
+            return false;
+        }
+
+        @Override
+        public void kill() {
+        }
+
+        @Override
+        public int join() {
+            return 0;
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return null;
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.appscode.ci.plugins.blueprint;
+
+import com.appscode.ci.model.blueprint.Blueprint;
+import com.fasterxml.jackson.databind.JsonNode;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controller-side cache of parsed <code>.blueprint.yml</code> files.
+ * <p>
+ * Entries are keyed by the SHA-256 of the file content, so repeated builds at the same commit reuse the parsed
+ * {@link Blueprint} instead of parsing the YAML again. The blueprint loaded by a build is also remembered for that
+ * build, so later build steps don't read the workspace file again.
+ * <p>
+ * Cached instances are shared between builds and must be treated as read-only.
+ */
+final class BlueprintCache {
+
+    private static final int CAPACITY = Integer.getInteger(BlueprintCache.class.getName() + ".size", 64);
+
+    private final Map<String, Blueprint> entries = new LinkedHashMap<String, Blueprint>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Blueprint> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private final Map<AbstractBuild, Blueprint> builds = new WeakHashMap<AbstractBuild, Blueprint>();
+
+    /** YAML tree each blueprint was read from, for settings the blueprint model doesn't know about. */
+    private final Map<Blueprint, JsonNode> trees = new WeakHashMap<Blueprint, JsonNode>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public synchronized Blueprint forBuild(AbstractBuild build) {
+        return builds.get(build);
+    }
+
+    public synchronized void remember(AbstractBuild build, Blueprint blueprint) {
+        builds.put(build, blueprint);
+    }
+
+    public Blueprint get(String digest) {
+        Blueprint blueprint;
+        synchronized (this) {
+            blueprint = entries.get(digest);
+        }
+        if (blueprint == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return blueprint;
+    }
+
+    public synchronized void put(String digest, Blueprint blueprint, JsonNode tree) {
+        entries.put(digest, blueprint);
+        trees.put(blueprint, tree);
+    }
+
+    public synchronized JsonNode tree(Blueprint blueprint) {
+        return trees.get(blueprint);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public static String digest(String content) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return Util.toHexString(md.digest(content.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
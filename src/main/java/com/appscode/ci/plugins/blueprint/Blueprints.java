@@ -2,23 +2,69 @@ package com.appscode.ci.plugins.blueprint;
 
 import com.appscode.ci.model.blueprint.Blueprint;
 import com.appscode.ci.model.blueprint.Job;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import hudson.FilePath;
 import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.Node;
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.FileUtils;
 
+import javax.annotation.CheckForNull;
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 public final class Blueprints {
 
     private static final ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
 
+    /**
+     * Settings read from the YAML tree only, as the blueprint model doesn't know about them, by section. They are
+     * left out when mapping the model, which rejects any other unknown setting.
+     */
+    private static final Collection<String> JOB_SETTINGS = Arrays.asList("steps", "matrix");
+    private static final Collection<String> DOCKER_SETTINGS = Arrays.asList("services", "reuse", "caches", "tmpfs");
+    private static final Collection<String> VOLUME_SETTINGS = Arrays.asList("readOnly");
+
+    private static final BlueprintCache cache = new BlueprintCache();
+
+    private static final int BUILT_IMAGES_SIZE = Integer.getInteger(Blueprints.class.getName() + ".builtImagesSize", 256);
+
+    /** Images built from each build context digest, keyed by node and digest. */
+    private static final Map<String, String> builtImages = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > BUILT_IMAGES_SIZE;
+        }
+    };
+
+    /** Pulls and builds of images in progress, keyed by node and image or build context. */
+    private static final SingleFlight<String> imageOperations = new SingleFlight<String>();
+
     private Blueprints(){}
 
+    /**
+     * Loads the <code>.blueprint.yml</code> from the build workspace.
+     * The file is read once per build, and parsing is skipped when an identical file was parsed before.
+     * Returned instances are shared, so callers must not modify them.
+     */
     public static Blueprint load(AbstractBuild build)  throws IOException, InterruptedException {
+        Blueprint bp = cache.forBuild(build);
+        if (bp != null) {
+            return bp;
+        }
+
         FilePath ws = build.getWorkspace();
         if (ws == null) {
             Node node = build.getBuiltOn();
@@ -27,36 +73,124 @@ public final class Blueprints {
             }
             throw new NullPointerException("no workspace from node " + node + " which is computer " + node.toComputer() + " and has channel " + node.getChannel());
         }
-        if (!ws.child(".blueprint.yml").exists()) {
+        String yamlString = ws.child(".blueprint.yml").act(new ReadBlueprint());
+        if (yamlString == null) {
             throw new NullPointerException("no such .blueprint.yml");
         }
 
-        String yamlString = ws.child(".blueprint.yml").readToString();
-        return mapper.readValue(yamlString, Blueprint.class);
+        bp = parse(yamlString);
+        cache.remember(build, bp);
+        return bp;
     }
 
-    public static Job loadJob(AbstractBuild build)  throws IOException, InterruptedException {
-        Blueprint bp = load(build);
-        String jobName = build.getParent().getName();
+    /**
+     * Returns the job blueprint left in the workspace by a previous build, or null if there is none.
+     * This is meant to be used before checkout, so the result isn't remembered for the build.
+     */
+    public static @CheckForNull Job peekJob(AbstractBuild build) throws IOException, InterruptedException {
+        FilePath ws = build.getWorkspace();
+        if (ws == null) {
+            return null;
+        }
+        String yamlString = ws.child(".blueprint.yml").act(new ReadBlueprint());
+        if (yamlString == null) {
+            return null;
+        }
+        return findJob(parse(yamlString), build.getParent().getName());
+    }
+
+    /* package */ static Blueprint parse(String yamlString) throws IOException {
+        String digest = BlueprintCache.digest(yamlString);
+        Blueprint bp = cache.get(digest);
+        if (bp == null) {
+            JsonNode tree = mapper.readTree(yamlString);
+            if (tree == null) {
+                throw new IOException("Empty .blueprint.yml");
+            }
+            bp = mapper.treeToValue(withoutTreeSettings(tree), Blueprint.class);
+            cache.put(digest, bp, tree);
+        }
+        return bp;
+    }
+
+    /**
+     * Returns a copy of the tree without the settings the blueprint model doesn't know about.
+     */
+    private static JsonNode withoutTreeSettings(JsonNode tree) {
+        JsonNode model = tree.deepCopy();
+        for (JsonNode job : model.path("jobs")) {
+            if (job instanceof ObjectNode) {
+                ((ObjectNode) job).remove(JOB_SETTINGS);
+            }
+            JsonNode docker = job.path("docker");
+            if (docker instanceof ObjectNode) {
+                ((ObjectNode) docker).remove(DOCKER_SETTINGS);
+            }
+            for (JsonNode volume : docker.path("volumes")) {
+                if (volume instanceof ObjectNode) {
+                    ((ObjectNode) volume).remove(VOLUME_SETTINGS);
+                }
+            }
+        }
+        return model;
+    }
+
+    private static @CheckForNull Job findJob(Blueprint bp, String jobName) {
         for (Job job: bp.getJobs()) {
             if (job.getName().equals(jobName)) {
                 return job;
             }
         }
+        return null;
+    }
+
+    /* package */ static BlueprintCache getCache() {
+        return cache;
+    }
+
+    public static Job loadJob(AbstractBuild build)  throws IOException, InterruptedException {
+        String jobName = build.getParent().getName();
+        Job job = findJob(load(build), jobName);
+        if (job != null) {
+            return job;
+        }
         throw new NullPointerException("no such job config: " + jobName + " in .blueprint.yml");
     }
 
+    /**
+     * Returns the YAML tree of the job, for settings the blueprint model doesn't know about, or a missing node if the
+     * job isn't there.
+     */
+    public static JsonNode loadJobTree(AbstractBuild build) throws IOException, InterruptedException {
+        String jobName = build.getParent().getName();
+        JsonNode tree = cache.tree(load(build));
+        if (tree != null) {
+            for (JsonNode job : tree.path("jobs")) {
+                if (jobName.equals(job.path("name").asText())) {
+                    return job;
+                }
+            }
+        }
+        return MissingNode.getInstance();
+    }
+
     public static String prepareDockerImage(Job blueprint, Docker docker, AbstractBuild build, TaskListener listener) throws IOException, InterruptedException {
+        return prepareDockerImage(blueprint, docker, build, listener, null);
+    }
+
+    /**
+     * Prepares the build image, waiting for the prefetched one if it is the image the blueprint asks for.
+     */
+    public static String prepareDockerImage(Job blueprint, final Docker docker, AbstractBuild build, final TaskListener listener, ImagePrefetch prefetch) throws IOException, InterruptedException {
         if (Util.fixEmpty(blueprint.getDocker().getImage()) != null) {
             String expandedImage = build.getEnvironment(listener).expand(blueprint.getDocker().getImage());
-            if (blueprint.getDocker().isForcePull() || !docker.hasImage(expandedImage)) {
-                listener.getLogger().println("Pull Docker image " + expandedImage + " from repository ...");
-                boolean pulled = docker.pullImage(expandedImage);
-                if (!pulled) {
-                    listener.getLogger().println("Failed to pull Docker image " + expandedImage);
-                    throw new IOException("Failed to pull Docker image " + expandedImage);
+            if (prefetch != null && prefetch.matches(expandedImage, blueprint.getDocker().isForcePull())) {
+                listener.getLogger().println("Waiting for Docker image " + expandedImage + " pulled during checkout ...");
+                if (prefetch.await(listener) != null) {
+                    return expandedImage;
                 }
             }
+            ensureImage(docker, expandedImage, blueprint.getDocker().isForcePull(), listener);
             return expandedImage;
         } else {
             String contextPath = "";
@@ -74,16 +208,85 @@ public final class Blueprints {
             }
 
             String expandedContextPath = build.getEnvironment(listener).expand(contextPath);
-            FilePath filePath = build.getWorkspace().child(expandedContextPath);
+            final FilePath filePath = build.getWorkspace().child(expandedContextPath);
 
-            FilePath dockerFile = filePath.child(dockerFilePath);
+            final FilePath dockerFile = filePath.child(dockerFilePath);
             if (!dockerFile.exists()) {
                 listener.getLogger().println("Your project is missing a Dockerfile");
                 throw new InterruptedException("Your project is missing a Dockerfile");
             }
 
-            listener.getLogger().println("Build Docker image from " + expandedContextPath + "/" + dockerFilePath + " ...");
-            return docker.buildImage(filePath, dockerFile.getRemote(), blueprint.getDocker().isForcePull());
+            final boolean forcePull = blueprint.getDocker().isForcePull();
+            final String description = expandedContextPath + "/" + dockerFilePath;
+            String contextDigest = filePath.act(new DockerContextDigest(dockerFilePath));
+
+            final String builtKey = docker.getNodeName() + "|" + contextDigest;
+            String key = docker.getNodeName() + "|build|" + contextDigest + "|" + forcePull;
+            return imageOperations.execute(key, new Callable<String>() {
+                public String call() throws Exception {
+                    // forcePull has to check the base image is up to date, so it always builds
+                    if (!forcePull) {
+                        String imageId;
+                        synchronized (builtImages) {
+                            imageId = builtImages.get(builtKey);
+                        }
+                        if (imageId != null && docker.hasImage(imageId)) {
+                            listener.getLogger().println("Build context " + description + " is unchanged, using Docker image " + imageId);
+                            return imageId;
+                        }
+                    }
+
+                    listener.getLogger().println("Build Docker image from " + description + " ...");
+                    String imageId = docker.buildImage(filePath, dockerFile.getRemote(), forcePull);
+                    synchronized (builtImages) {
+                        builtImages.put(builtKey, imageId);
+                    }
+                    return imageId;
+                }
+            }, waiting(listener, "build of an identical Docker image from " + description));
+        }
+    }
+
+    /**
+     * Pulls the image unless it is already available. Concurrent builds asking for the same image on the same node
+     * share a single pull.
+     */
+    static void ensureImage(final Docker docker, final String image, final boolean forcePull, final TaskListener listener) throws IOException, InterruptedException {
+        String key = docker.getNodeName() + "|pull|" + image + "|" + forcePull;
+        imageOperations.execute(key, new Callable<String>() {
+            public String call() throws Exception {
+                if (forcePull || !docker.hasImage(image)) {
+                    listener.getLogger().println("Pull Docker image " + image + " from repository ...");
+                    boolean pulled = docker.pullImage(image);
+                    if (!pulled) {
+                        listener.getLogger().println("Failed to pull Docker image " + image);
+                        throw new IOException("Failed to pull Docker image " + image);
+                    }
+                }
+                return image;
+            }
+        }, waiting(listener, "pull of Docker image " + image));
+    }
+
+    private static Runnable waiting(final TaskListener listener, final String operation) {
+        return new Runnable() {
+            public void run() {
+                listener.getLogger().println("Waiting for concurrent " + operation + " on this node ...");
+            }
+        };
+    }
+
+    /**
+     * Reads the blueprint in a single remote call, returning null when the file doesn't exist.
+     */
+    private static final class ReadBlueprint extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        public String invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            if (!f.isFile()) {
+                return null;
+            }
+            return FileUtils.readFileToString(f);
         }
     }
 }
@@ -1,17 +1,25 @@
 package com.appscode.ci.plugins.blueprint;
 
 import hudson.EnvVars;
+import hudson.Extension;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildBadgeAction;
 import hudson.model.EnvironmentContributingAction;
+import hudson.model.Result;
 import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Used to determine if launcher has to be decorated to execute in container, after SCM checkout completed.
@@ -26,8 +34,28 @@ public class BuiltInContainer implements BuildBadgeAction, EnvironmentContributi
     private transient String userId;
     private transient boolean enable;
     private transient Docker docker;
+    private transient ExecSession session;
+    private transient ContainerEnvFile envFile;
+    private transient EnvVars environmentOverlay;
+    private transient ImagePrefetch prefetch;
+    private transient EnvVars containerEnvironment;
+    private transient ServiceContainers services;
+    private transient ContainerReuse.Lease reuse;
+    private transient CacheVolumes caches;
+    private transient boolean sharedBuildData;
+    private transient String buildDataPath;
+    private transient boolean pendingResult;
+    private transient List<MatrixCell> matrix = Collections.emptyList();
+    /** Container paths of the volumes mounted read-only. Only needed to start the container. */
+    private transient Set<String> readOnly = new HashSet<String>();
+    /** Options of the tmpfs mounts, by container path. Only needed to start the container. */
+    private transient Map<String, String> tmpfs = new HashMap<String, String>();
     private List<Integer> ports = new ArrayList<Integer>();
+    /**
+     * Container paths by host path.
+     */
     private Map<String,String> volumes = new HashMap<String,String>();
+    private ContainerTimings timings = new ContainerTimings();
 
     public BuiltInContainer() {}
 
@@ -73,17 +101,226 @@ public class BuiltInContainer implements BuildBadgeAction, EnvironmentContributi
 
     public void setDocker(Docker docker) {
         this.docker = docker;
+        docker.setTimings(getTimings());
+        getTimings().setNodeName(docker.getNodeName());
     }
 
+    /**
+     * Time spent in each phase of the container lifecycle. Null for builds recorded before it was measured.
+     */
+    public ContainerTimings getTimings() {
+        return timings;
+    }
+
+    ExecSession getSession() {
+        return session;
+    }
+
+    void setSession(ExecSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Environment to pass on each launch, for containers which were not started with the build environment.
+     */
+    EnvVars getEnvironmentOverlay() {
+        return environmentOverlay;
+    }
+
+    void setEnvironmentOverlay(EnvVars environmentOverlay) {
+        this.environmentOverlay = environmentOverlay;
+    }
+
+    /**
+     * Environment of the container as known when it was started, so it doesn't have to be read from the container.
+     */
+    EnvVars getContainerEnvironment() {
+        return containerEnvironment;
+    }
+
+    void setContainerEnvironment(EnvVars containerEnvironment) {
+        this.containerEnvironment = containerEnvironment;
+    }
+
+    ServiceContainers getServices() {
+        return services;
+    }
+
+    void setServices(ServiceContainers services) {
+        this.services = services;
+    }
+
+    /**
+     * Set when the container is to be kept for the next build of the job.
+     */
+    void setReuse(ContainerReuse.Lease reuse) {
+        this.reuse = reuse;
+    }
+
+    /**
+     * Set when the container has a {@link ContainerBuildData build data directory} of its own, whose content is moved
+     * to the given build data directory once the build is done, or deleted if it is null.
+     */
+    void setSharedBuildData(String buildDataPath) {
+        this.sharedBuildData = true;
+        this.buildDataPath = buildDataPath;
+    }
+
+    /**
+     * Cache volumes mounted for the build, if the job declares any.
+     */
+    CacheVolumes getCaches() {
+        return caches;
+    }
+
+    void setCaches(CacheVolumes caches) {
+        this.caches = caches;
+    }
+
+    /**
+     * Cells of the build matrix, each with a container of its own. Empty if the job has no matrix.
+     */
+    public List<MatrixCell> getMatrix() {
+        return matrix != null ? matrix : Collections.<MatrixCell>emptyList();
+    }
+
+    void setMatrix(List<MatrixCell> matrix) {
+        this.matrix = matrix;
+    }
+
+    /**
+     * Returns a view of this container for another container of the build, with the variables added to the
+     * environment passed on each launch.
+     */
+    /* package */ BuiltInContainer forContainer(String container, EnvVars variables) {
+        BuiltInContainer other = new BuiltInContainer();
+        other.image = image;
+        other.container = container;
+        other.userId = userId;
+        other.docker = docker;
+        other.timings = timings;
+        other.environmentOverlay = environmentOverlay != null ? new EnvVars(environmentOverlay) : new EnvVars();
+        other.environmentOverlay.putAll(variables);
+        other.enable = true;
+        return other;
+    }
+
+    ImagePrefetch getPrefetch() {
+        return prefetch;
+    }
+
+    void setPrefetch(ImagePrefetch prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    ContainerEnvFile getEnvFile() {
+        return envFile;
+    }
+
+    void setEnvFile(ContainerEnvFile envFile) {
+        this.envFile = envFile;
+    }
+
+    /**
+     * Removes the containers of a build which failed to set up.
+     */
     public boolean tearDown() throws IOException, InterruptedException {
+        return tearDown(Result.FAILURE);
+    }
+
+    /**
+     * Removes the containers of the build. The build container, and writes to the cache volumes, are kept for the
+     * next builds only if the build is successful. While its result is null, as it is for a build still running,
+     * the containers of a build with reuse or caches are left as they are until the build completed. Others don't
+     * depend on the result, so they are removed right away.
+     */
+    public boolean tearDown(Result result) throws IOException, InterruptedException {
         if (container != null) {
+            long start = System.nanoTime();
             enable = false;
-            docker.kill(container);
+            if (session != null) {
+                session.close();
+                session = null;
+            }
+            if (envFile != null) {
+                envFile.delete();
+                envFile = null;
+            }
+            pendingResult = result == null && (reuse != null || caches != null);
+            if (pendingResult) {
+                // see Completion
+                return true;
+            }
+            // without reuse nor caches, nothing depends on the result
+            boolean succeeded = result != null && result.isBetterOrEqualTo(Result.SUCCESS);
+            // a container whose build data dir isn't empty can't be kept for another build
+            boolean collected = !sharedBuildData || collectBuildData();
+            List<String> containers = new ArrayList<String>();
+            if (reuse == null || !succeeded || !collected || !ContainerReuse.get().park(docker, reuse, container)) {
+                containers.add(container);
+            }
+            if (services != null) {
+                containers.addAll(services.awaitContainers());
+            }
+            containers.addAll(MatrixCell.containers(getMatrix()));
+            if (caches != null && succeeded) {
+                caches.merge();
+            }
+            // cache volumes can only be removed once their container is
+            if (ContainerReaper.ASYNC && caches == null) {
+                // the reaper releases the build data dir of the container once it is removed
+                for (String c : containers) {
+                    ContainerReaper.get().remove(docker, c);
+                }
+            } else if (!containers.isEmpty()) {
+                docker.kill(containers.toArray(new String[containers.size()]));
+                if (sharedBuildData && containers.contains(container)) {
+                    ContainerBuildData.release(docker, container);
+                }
+            }
+            if (caches != null) {
+                caches.release(image);
+                caches = null;
+            }
+            timings.record("tearDown", start);
         }
         return true;
 
     }
 
+    /**
+     * Completes the tear down of the builds whose result wasn't known yet.
+     */
+    @Extension
+    public static final class Completion extends RunListener<AbstractBuild<?, ?>> {
+        @Override
+        public void onCompleted(AbstractBuild<?, ?> build, @Nonnull TaskListener listener) {
+            BuiltInContainer runInContainer = build.getAction(BuiltInContainer.class);
+            if (runInContainer == null || !runInContainer.pendingResult) {
+                return;
+            }
+            Result result = build.getResult();
+            try {
+                runInContainer.tearDown(result != null ? result : Result.FAILURE);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove the containers of " + build, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean collectBuildData() throws InterruptedException {
+        try {
+            if (ContainerBuildData.collect(docker, container, buildDataPath)) {
+                return true;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to collect build data of container " + container, e);
+        }
+        return false;
+    }
+
     public List<Integer> getPorts() {
         return ports;
     }
@@ -103,6 +340,20 @@ public class BuiltInContainer implements BuildBadgeAction, EnvironmentContributi
         volumes.put(hostPath, path);
     }
 
+    public void bindMount(String hostPath, String path, boolean readOnly) {
+        volumes.put(hostPath, path);
+        if (readOnly) {
+            this.readOnly.add(path);
+        }
+    }
+
+    /**
+     * Mounts a memory backed filesystem, limited to the given size (e.g. <code>512m</code>) unless it is null.
+     */
+    public void mountTmpfs(String path, String size) {
+        tmpfs.put(path, size != null ? "size=" + size : "");
+    }
+
     public Map<String, String> getVolumes() {
         return volumes;
     }
@@ -117,11 +368,29 @@ public class BuiltInContainer implements BuildBadgeAction, EnvironmentContributi
     }
 
     public @Nonnull Map<String, String> getVolumes(AbstractBuild build) throws IOException, InterruptedException {
-        final EnvVars environment = build.getEnvironment(TaskListener.NULL);
+        return expandVolumes(volumes, build.getEnvironment(TaskListener.NULL));
+    }
+
+    /**
+     * Returns the spec with the read-only and tmpfs mounts of the build container, which aren't recorded with the
+     * build.
+     */
+    /* package */ ContainerSpec withMounts(ContainerSpec spec, AbstractBuild build) throws IOException, InterruptedException {
+        EnvVars environment = build.getEnvironment(TaskListener.NULL);
+        Set<String> paths = new HashSet<String>();
+        for (String path : readOnly) {
+            paths.add(environment.expand(path));
+        }
+        return spec.withMounts(paths, expandVolumes(tmpfs, environment));
+    }
+
+    /* package */ static @Nonnull Map<String, String> expandVolumes(Map<String, String> volumes, EnvVars environment) {
         Map<String, String> map = new HashMap<String, String>(volumes);
         for (Map.Entry<String, String> e : volumes.entrySet()) {
             map.put(environment.expand(e.getKey()), environment.expand(e.getValue()));
         }
         return map;
     }
+
+    private static final Logger LOGGER = Logger.getLogger(BuiltInContainer.class.getName());
 }
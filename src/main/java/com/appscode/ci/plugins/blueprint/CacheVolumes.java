@@ -0,0 +1,193 @@
+package com.appscode.ci.plugins.blueprint;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Dependency caches declared by the job blueprint, shared by the builds on a node without sharing writes:
+ * <pre>
+ * docker:
+ *   caches:
+ *   - name: m2
+ *     path: /root/.m2
+ * </pre>
+ * Each cache has a read-mostly base directory on the node. A build gets an overlay volume on top of it, so its
+ * writes go to a directory of its own. Once the build succeeded, its writes are merged into a hard linked copy of
+ * the base, which then atomically replaces it for the next builds. Running builds keep the base they started with.
+ * <p>
+ * Overlays are <code>local</code> driver volumes of type <code>overlay</code>, mounted by the docker daemon, which
+ * must run on the node itself.
+ */
+final class CacheVolumes {
+
+    /** Directory of the node holding the caches. */
+    private static final String ROOT = System.getProperty(CacheVolumes.class.getName() + ".root", "/var/lib/jenkins/caches");
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9_.-]*");
+
+    /**
+     * Creates the base of the cache if needed and prints its current directory, removing bases replaced more than a
+     * day ago and overlays left over by builds which didn't complete. Files written there as root by the containers
+     * can't be removed by the agent user, and are left.
+     */
+    private static final String PREPARE =
+            "set -e\n" +
+            "dir=$1 build=$2\n" +
+            "mkdir -p \"$dir/builds/$build/upper\" \"$dir/builds/$build/work\"\n" +
+            "exec 9>\"$dir/lock\"\n" +
+            "flock 9\n" +
+            "if [ ! -e \"$dir/current\" ]; then mkdir -p \"$dir/base.0\"; ln -s base.0 \"$dir/current\"; fi\n" +
+            "current=$(readlink \"$dir/current\")\n" +
+            "find \"$dir\" -mindepth 1 -maxdepth 1 -name 'base.*' ! -name \"$current\" -mmin +1440 -exec rm -rf {} + 2>/dev/null || true\n" +
+            "find \"$dir/builds\" -mindepth 1 -maxdepth 1 -mmin +1440 -exec rm -rf {} + 2>/dev/null || true\n" +
+            "echo \"$dir/$current\"\n";
+
+    /**
+     * Copies the base with hard links, extracts the build writes over it, unlinking files first so the previous base
+     * is never written through, and switches the current base. Whiteouts of deleted files are skipped, as caches
+     * only grow.
+     */
+    private static final String MERGE =
+            "set -e\n" +
+            "dir=$1 build=$2\n" +
+            "exec 9>\"$dir/lock\"\n" +
+            "flock 9\n" +
+            "next=base.$(date +%s%N)\n" +
+            "cp -al \"$dir/$(readlink \"$dir/current\")\" \"$dir/$next\"\n" +
+            "(cd \"$dir/builds/$build/upper\" && find . ! -type c -print0 | tar --null --no-recursion -T - -cf -) | (cd \"$dir/$next\" && tar --unlink-first -xf -)\n" +
+            "touch \"$dir/$(readlink \"$dir/current\")\"\n" +
+            "ln -s \"$next\" \"$dir/current.$build\"\n" +
+            "mv -T \"$dir/current.$build\" \"$dir/current\"\n";
+
+    private final List<Cache> caches;
+    private final Docker docker;
+    private final Launcher launcher;
+    private final TaskListener listener;
+    private final String buildId;
+
+    private CacheVolumes(List<Cache> caches, Docker docker, Launcher launcher, TaskListener listener, String buildId) {
+        this.caches = caches;
+        this.docker = docker;
+        this.launcher = launcher;
+        this.listener = listener;
+        this.buildId = buildId;
+    }
+
+    /**
+     * Returns the caches declared in the <code>docker</code> section of the job tree, or null if there are none.
+     * The launcher must run commands on the node itself, not in the build container.
+     */
+    static CacheVolumes forJob(JsonNode docker, AbstractBuild build, Docker client, Launcher launcher, TaskListener listener) throws IOException {
+        List<Cache> caches = new ArrayList<Cache>();
+        for (JsonNode cache : docker.path("caches")) {
+            String name = Util.fixEmpty(cache.path("name").asText());
+            String path = Util.fixEmpty(cache.path("path").asText());
+            if (name == null || path == null || !NAME.matcher(name).matches()) {
+                throw new IOException("Caches require a name, made of letters, digits, '_', '.' or '-', and a path in .blueprint.yml");
+            }
+            caches.add(new Cache(name, path));
+        }
+        if (caches.isEmpty()) {
+            return null;
+        }
+        String buildId = (build.getParent().getFullName() + "-" + build.getNumber()).replaceAll("[^A-Za-z0-9_.-]", "-");
+        return new CacheVolumes(caches, client, launcher, listener, buildId);
+    }
+
+    /**
+     * Creates the overlay volumes of the build, returning the container paths to mount them on, by volume name.
+     */
+    Map<String, String> prepare() throws IOException, InterruptedException {
+        Map<String, String> volumes = new LinkedHashMap<String, String>();
+        for (Cache cache : caches) {
+            String dir = ROOT + "/" + cache.name;
+            String base = run(PREPARE, dir).trim();
+            String upper = dir + "/builds/" + buildId;
+            String volume = volumeName(cache);
+            docker.createOverlayVolume(volume, base, upper + "/upper", upper + "/work");
+            volumes.put(volume, cache.path);
+        }
+        return volumes;
+    }
+
+    /**
+     * Merges the writes of the build into the caches. Must only be called once the build is done writing to them.
+     * A cache which fails to merge is left as it was, without failing the build.
+     */
+    void merge() throws InterruptedException {
+        for (Cache cache : caches) {
+            listener.getLogger().println("Merging cache " + cache.name + " for the next builds");
+            try {
+                run(MERGE, ROOT + "/" + cache.name);
+            } catch (IOException e) {
+                listener.getLogger().println("WARNING: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Removes the overlay volumes and the writes of the build. The containers using them must have been removed.
+     * Writes the agent user can't remove, such as files written by root in the container or the overlay work
+     * directory, are removed as root in a container of the given image, if there is one.
+     */
+    void release(String image) throws IOException, InterruptedException {
+        for (Cache cache : caches) {
+            try {
+                docker.removeVolume(volumeName(cache));
+            } catch (RuntimeException e) {
+                listener.getLogger().println("WARNING: " + e.getMessage());
+            }
+            String dir = ROOT + "/" + cache.name + "/builds/" + buildId;
+            int status = launcher.launch().cmds("rm", "-rf", dir)
+                    .stdout(new ByteArrayOutputStream()).quiet(true).join();
+            if (status == 0) {
+                continue;
+            }
+            if (image == null) {
+                listener.getLogger().println("WARNING: Failed to remove " + dir);
+                continue;
+            }
+            try {
+                docker.deleteAsRoot(image, dir);
+            } catch (RuntimeException e) {
+                listener.getLogger().println("WARNING: " + e.getMessage());
+            }
+        }
+    }
+
+    private String volumeName(Cache cache) {
+        return "blueprint-cache-" + cache.name + "-" + buildId;
+    }
+
+    private String run(String script, String dir) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = launcher.launch()
+                .cmds("/bin/sh", "-c", script, "sh", dir, buildId)
+                .stdout(out).stderr(listener.getLogger()).quiet(true).join();
+        if (status != 0) {
+            throw new IOException("Failed to update cache " + dir);
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static final class Cache {
+        private final String name;
+        private final String path;
+
+        Cache(String name, String path) {
+            this.name = name;
+            this.path = path;
+        }
+    }
+}
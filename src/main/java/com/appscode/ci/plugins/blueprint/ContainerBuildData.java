@@ -0,0 +1,122 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Build data directory of the containers started before the build that uses them, such as pooled or kept ones,
+ * which can't have the directory of the build mounted.
+ * <p>
+ * Each of these containers gets a directory of its own mounted on <code>/mnt/build-data</code>, so a build never sees
+ * the build data of another one. The directory is empty while the container is idle: once the build is done, what
+ * it wrote there is moved to its own build data directory.
+ */
+final class ContainerBuildData {
+
+    static final String PATH = "/mnt/build-data";
+
+    /** Directory of the node holding the build data directory of each container, on the build data filesystem. */
+    private static final String ROOT = "/mnt/ci-data/.containers";
+
+    /** Build data directory of the containers started here, by container ID. */
+    private static final ConcurrentMap<String, String> dirs = new ConcurrentHashMap<String, String>();
+
+    private ContainerBuildData() {
+    }
+
+    /**
+     * Starts a container for the spec, with an empty build data directory of its own.
+     */
+    static String runDetached(Docker docker, ContainerSpec spec) throws IOException, InterruptedException {
+        String dir = ROOT + "/" + UUID.randomUUID();
+        // created by the build user, as docker would create it owned by root
+        docker.getNodePath(dir).mkdirs();
+        String container = null;
+        try {
+            container = docker.runDetached(spec.withVolume(dir, PATH));
+            dirs.put(container, dir);
+            return container;
+        } finally {
+            if (container == null) {
+                docker.getNodePath(dir).deleteRecursive();
+            }
+        }
+    }
+
+    /**
+     * Returns the build data directory of the container on the node, or null if it has none.
+     */
+    static String getDir(String container) {
+        return dirs.get(container);
+    }
+
+    /**
+     * Moves what the build wrote to the build data directory of the container to the build's own one, or deletes it
+     * if the build has none. Returns false if the directory couldn't be emptied.
+     */
+    static boolean collect(Docker docker, String container, @CheckForNull String buildDataPath) throws IOException, InterruptedException {
+        String dir = dirs.get(container);
+        if (dir == null) {
+            return false;
+        }
+        return docker.getNodePath(dir).act(new MoveChildren(buildDataPath));
+    }
+
+    /**
+     * Deletes the build data directory of a container which is being removed.
+     */
+    static void release(Docker docker, String container) {
+        String dir = dirs.remove(container);
+        if (dir == null) {
+            return;
+        }
+        try {
+            docker.getNodePath(dir).deleteRecursive();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to delete build data directory " + dir + " of container " + container, e);
+        }
+    }
+
+    private static final class MoveChildren extends MasterToSlaveFileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final String target;
+
+        MoveChildren(String target) {
+            this.target = target;
+        }
+
+        public Boolean invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            File[] children = dir.listFiles();
+            if (children == null) {
+                return false;
+            }
+            boolean emptied = true;
+            for (File child : children) {
+                if (target != null) {
+                    // same filesystem, so nothing is copied
+                    emptied &= child.renameTo(new File(target, child.getName()));
+                    continue;
+                }
+                try {
+                    Util.deleteRecursive(child);
+                } catch (IOException e) {
+                    emptied = false;
+                }
+            }
+            return emptied;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ContainerBuildData.class.getName());
+}
@@ -0,0 +1,122 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Container environment written once per build to a file in the build data dir of the build container, so each
+ * <code>docker exec</code> only passes the variables that changed since, instead of the whole environment on the
+ * command line.
+ * <p>
+ * Unlike the node tmpdir, that directory is only mounted in the build container, and the file is created only
+ * readable by the build user, so other builds can't read it. The steps of the build itself can, so sensitive
+ * variables are left out of the file and still passed, masked, on each command line.
+ */
+final class ContainerEnvFile {
+
+    static final boolean ENABLED = Boolean.getBoolean(ContainerEnvFile.class.getName() + ".enabled");
+
+    /** Variables that can't be sourced by a shell are always passed on the command line. */
+    private static final Pattern SHELL_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private final FilePath dir;
+    private final String containerDir;
+    private final Set sensitive;
+    private FilePath file;
+    private Map<String, String> base;
+
+    /**
+     * Writes the file to a directory of the node, mounted on the given path in the build container, without the
+     * sensitive variables.
+     */
+    ContainerEnvFile(FilePath dir, String containerDir, Set sensitive) {
+        this.dir = dir;
+        this.containerDir = containerDir;
+        this.sensitive = sensitive;
+    }
+
+    /**
+     * Returns the variables to pass along with the env file, writing it on first use.
+     * Returns null when the environment dropped variables from the file, so the full environment has to be passed.
+     */
+    synchronized Map<String, String> delta(EnvVars environment) throws IOException, InterruptedException {
+        if (file == null) {
+            write(environment);
+        }
+
+        for (String key : base.keySet()) {
+            if (!environment.containsKey(key)) {
+                return null;
+            }
+        }
+        Map<String, String> delta = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> e : environment.entrySet()) {
+            String value = base.get(e.getKey());
+            if (value == null || !value.equals(e.getValue())) {
+                delta.put(e.getKey(), e.getValue());
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Path of the file in the container.
+     */
+    synchronized String getRemote() {
+        return containerDir + "/" + file.getName();
+    }
+
+    synchronized void delete() throws IOException, InterruptedException {
+        if (file != null) {
+            file.delete();
+            file = null;
+        }
+    }
+
+    private void write(EnvVars environment) throws IOException, InterruptedException {
+        Map<String, String> written = new LinkedHashMap<String, String>();
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> e : environment.entrySet()) {
+            if (!SHELL_NAME.matcher(e.getKey()).matches() || sensitive.contains(e.getKey())) {
+                continue;
+            }
+            content.append(e.getKey()).append("='").append(e.getValue().replace("'", "'\\''")).append("'\n");
+            written.put(e.getKey(), e.getValue());
+        }
+
+        file = dir.child(dir.act(new CreatePrivateFile(content.toString())));
+        base = written;
+    }
+
+    /**
+     * Creates a file only readable by its owner, which is never readable by others, even before it is written.
+     */
+    private static final class CreatePrivateFile extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final String content;
+
+        CreatePrivateFile(String content) {
+            this.content = content;
+        }
+
+        public String invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            Path file = Files.createTempFile(dir.toPath(), ".blueprint", ".env",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            Files.write(file, content.getBytes("UTF-8"));
+            return file.getFileName().toString();
+        }
+    }
+}
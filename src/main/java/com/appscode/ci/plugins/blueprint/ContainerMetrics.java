@@ -0,0 +1,140 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Histograms of the container lifecycle phases, per node and per image, exposed in the Prometheus text format at
+ * <code>/blueprint-metrics/</code> along with the cache counters.
+ */
+public final class ContainerMetrics {
+
+    /** Upper bounds of the histogram buckets, in seconds. */
+    private static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+
+    /** Maximum number of series per histogram family, as image names aren't bounded. */
+    private static final int MAX_SERIES = Integer.getInteger(ContainerMetrics.class.getName() + ".maxSeries", 1000);
+
+    private static final ContainerMetrics INSTANCE = new ContainerMetrics();
+
+    private final Map<String, Histogram> byNode = new TreeMap<String, Histogram>();
+    private final Map<String, Histogram> byImage = new TreeMap<String, Histogram>();
+
+    static ContainerMetrics get() {
+        return INSTANCE;
+    }
+
+    void observe(String phase, @CheckForNull String nodeName, @CheckForNull String image, long nanos) {
+        double seconds = nanos / 1e9;
+        if (nodeName != null) {
+            observe(byNode, "phase=\"" + escape(phase) + "\",node=\"" + escape(nodeName.length() == 0 ? "master" : nodeName) + "\"", seconds);
+        }
+        if (image != null) {
+            observe(byImage, "phase=\"" + escape(phase) + "\",image=\"" + escape(image) + "\"", seconds);
+        }
+    }
+
+    private static void observe(Map<String, Histogram> family, String labels, double seconds) {
+        Histogram h;
+        synchronized (family) {
+            h = family.get(labels);
+            if (h == null) {
+                if (family.size() >= MAX_SERIES) {
+                    return;
+                }
+                h = new Histogram();
+                family.put(labels, h);
+            }
+        }
+        h.observe(seconds);
+    }
+
+    void write(PrintWriter w) {
+        write(w, "blueprint_node_phase_seconds", "Duration of the build container lifecycle phases, per node.", byNode);
+        write(w, "blueprint_image_phase_seconds", "Duration of the build container lifecycle phases, per image.", byImage);
+
+        BlueprintCache cache = Blueprints.getCache();
+        counter(w, "blueprint_cache_hits_total", "Blueprints found in the parse cache.", cache.getHits());
+        counter(w, "blueprint_cache_misses_total", "Blueprints parsed.", cache.getMisses());
+        counter(w, "blueprint_image_index_hits_total", "Image lookups answered by the image index.", ImageIndex.get().getHits());
+        counter(w, "blueprint_image_index_fallbacks_total", "Image lookups falling back to docker inspect.", ImageIndex.get().getFallbacks());
+    }
+
+    private static void write(PrintWriter w, String name, String help, Map<String, Histogram> family) {
+        w.print("# HELP " + name + " " + help + "\n");
+        w.print("# TYPE " + name + " histogram\n");
+        synchronized (family) {
+            for (Map.Entry<String, Histogram> e : family.entrySet()) {
+                e.getValue().write(w, name, e.getKey());
+            }
+        }
+    }
+
+    private static void counter(PrintWriter w, String name, String help, long value) {
+        w.print("# HELP " + name + " " + help + "\n");
+        w.print("# TYPE " + name + " counter\n");
+        w.print(name + " " + value + "\n");
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Histogram {
+        private final long[] counts = new long[BUCKETS.length];
+        private long count;
+        private double sum;
+
+        synchronized void observe(double seconds) {
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    counts[i]++;
+                }
+            }
+            count++;
+            sum += seconds;
+        }
+
+        synchronized void write(PrintWriter w, String name, String labels) {
+            for (int i = 0; i < BUCKETS.length; i++) {
+                w.print(name + "_bucket{" + labels + ",le=\"" + BUCKETS[i] + "\"} " + counts[i] + "\n");
+            }
+            w.print(name + "_bucket{" + labels + ",le=\"+Inf\"} " + count + "\n");
+            w.print(name + "_sum{" + labels + "} " + sum + "\n");
+            w.print(name + "_count{" + labels + "} " + count + "\n");
+        }
+    }
+
+    @Extension
+    public static class Endpoint implements RootAction {
+
+        public String getIconFileName() {
+            return null;
+        }
+
+        public String getDisplayName() {
+            return "Blueprint metrics";
+        }
+
+        public String getUrlName() {
+            return "blueprint-metrics";
+        }
+
+        public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            Jenkins.getInstance().checkPermission(Jenkins.READ);
+            rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+            PrintWriter w = rsp.getWriter();
+            INSTANCE.write(w);
+            w.flush();
+        }
+    }
+}
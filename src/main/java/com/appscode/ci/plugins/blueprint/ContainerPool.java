@@ -0,0 +1,212 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-node pool of containers started ahead of the builds that will use them, so starting the build container is
+ * off the critical path.
+ * <p>
+ * Containers are pooled by node and {@link ContainerSpec#signature signature}, so they are only handed to builds
+ * which would have started the very same container. Their environment is empty, the build environment being passed
+ * on each <code>docker exec</code> instead, and they have a {@link ContainerBuildData build data directory} of their
+ * own. A pooled container is used by a single build, then removed as usual.
+ * <p>
+ * The pool for a signature is created by the first build using it, and kept filled with a minimum of idle
+ * containers until it is no longer used.
+ */
+public final class ContainerPool {
+
+    static final boolean ENABLED = Boolean.getBoolean(ContainerPool.class.getName() + ".enabled");
+
+    /** Number of idle containers kept ready per signature. */
+    private static final int MIN_IDLE = Integer.getInteger(ContainerPool.class.getName() + ".min", 1);
+
+    /** Maximum number of idle containers per signature. */
+    private static final int MAX_IDLE = Integer.getInteger(ContainerPool.class.getName() + ".max", 4);
+
+    /** Seconds after which idle containers, and unused pools, are discarded. */
+    private static final long IDLE_TIMEOUT = Long.getLong(ContainerPool.class.getName() + ".idleTimeout", 600);
+
+    private static final ContainerPool INSTANCE = new ContainerPool();
+
+    private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+
+    static ContainerPool get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns an idle container for the spec, or null if none is ready and the build has to start its own.
+     * Containers are reset with the given command, run as root, which also checks they are still healthy.
+     */
+    @CheckForNull String lease(Docker docker, ContainerSpec spec, String... reset) throws IOException, InterruptedException {
+        String key = docker.getNodeName() + ":" + spec.signature(docker.getImageId(spec.image), docker.isPrivileged());
+        Slot slot = slots.get(key);
+        if (slot == null) {
+            Slot created = new Slot(spec);
+            slot = slots.putIfAbsent(key, created);
+            if (slot == null) {
+                slot = created;
+            }
+        }
+
+        slot.touch(docker.detached());
+        try {
+            String container;
+            while ((container = slot.poll()) != null) {
+                if (docker.exec(container, "0", reset) == 0) {
+                    return container;
+                }
+                LOGGER.log(Level.FINE, "Discarding unhealthy pooled container {0}", container);
+                slot.discard(container);
+            }
+            return null;
+        } finally {
+            slot.refill();
+        }
+    }
+
+    void evict() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Slot> e : slots.entrySet()) {
+            Slot slot = e.getValue();
+            for (String container : slot.expire(now)) {
+                slot.discard(container);
+            }
+            if (slot.isUnused(now)) {
+                slots.remove(e.getKey(), slot);
+            }
+        }
+    }
+
+    private static final class Slot {
+        private final ContainerSpec spec;
+        private final LinkedList<Idle> idle = new LinkedList<Idle>();
+        private int starting;
+        private volatile Docker docker;
+        private volatile long lastUsed;
+
+        Slot(ContainerSpec spec) {
+            this.spec = spec;
+        }
+
+        void touch(Docker docker) {
+            this.docker = docker;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        synchronized String poll() {
+            Idle i = idle.poll();
+            return i == null ? null : i.container;
+        }
+
+        synchronized List<String> expire(long now) {
+            List<String> expired = new ArrayList<String>();
+            for (Iterator<Idle> it = idle.iterator(); it.hasNext(); ) {
+                Idle i = it.next();
+                if (now - i.since > TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT)) {
+                    expired.add(i.container);
+                    it.remove();
+                }
+            }
+            return expired;
+        }
+
+        synchronized boolean isUnused(long now) {
+            return idle.isEmpty() && starting == 0 && now - lastUsed > TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT);
+        }
+
+        void discard(String container) {
+            try {
+                docker.kill(container);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to remove pooled container " + container, e);
+            }
+            ContainerBuildData.release(docker, container);
+        }
+
+        /**
+         * Starts containers in the background until the minimum number of idle containers is reached.
+         */
+        void refill() {
+            int missing;
+            synchronized (this) {
+                missing = Math.min(MIN_IDLE, MAX_IDLE) - idle.size() - starting;
+                if (missing <= 0) {
+                    return;
+                }
+                starting += missing;
+            }
+            for (int i = 0; i < missing; i++) {
+                Computer.threadPoolForRemoting.submit(new Runnable() {
+                    public void run() {
+                        String container = null;
+                        try {
+                            container = ContainerBuildData.runDetached(docker, spec);
+                        } catch (Exception e) {
+                            LOGGER.log(Level.WARNING, "Failed to start pooled container for " + spec.image, e);
+                        }
+                        boolean keep;
+                        synchronized (Slot.this) {
+                            starting--;
+                            keep = container != null && idle.size() < MAX_IDLE;
+                            if (keep) {
+                                idle.add(new Idle(container));
+                            }
+                        }
+                        if (container != null && !keep) {
+                            discard(container);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private static final class Idle {
+        private final String container;
+        private final long since = System.currentTimeMillis();
+
+        Idle(String container) {
+            this.container = container;
+        }
+    }
+
+    @Extension
+    public static class Eviction extends AsyncPeriodicWork {
+
+        public Eviction() {
+            super("Blueprint container pool eviction");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            if (ENABLED) {
+                INSTANCE.evict();
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ContainerPool.class.getName());
+}
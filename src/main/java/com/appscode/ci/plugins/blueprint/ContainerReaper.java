@@ -0,0 +1,281 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes containers in the background, so builds don't hold their executor while their container is removed.
+ * <p>
+ * Removals are queued per node and batched into a single <code>docker rm --force</code>, failed ones being retried
+ * on the next sweep. The {@link ContainerBuildData build data directory} of a container is only released once the
+ * container is removed, as it is mounted there until then.
+ * <p>
+ * When enabled, sweeps also look for containers started by this controller which no build or pool knows about, e.g.
+ * after a controller restart, and remove them. This runs <code>docker ps</code> on every online node, so it is
+ * opt-in.
+ */
+public final class ContainerReaper {
+
+    /** Whether build containers are removed in the background. */
+    static final boolean ASYNC = Boolean.getBoolean(ContainerReaper.class.getName() + ".async");
+
+    /** Whether containers left over by this controller are looked for and removed. */
+    private static final boolean SWEEP_ORPHANS = Boolean.getBoolean(ContainerReaper.class.getName() + ".sweepOrphans");
+
+    /** Minimum number of seconds between two scans of the nodes for orphan containers. */
+    private static final long SCAN_PERIOD = Long.getLong(ContainerReaper.class.getName() + ".scanPeriod", 300);
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    /** Label set on every container started by this plugin, its value being the controller instance ID. */
+    static final String LABEL = "com.appscode.ci.blueprint";
+
+    private static final ContainerReaper INSTANCE = new ContainerReaper();
+
+    /** Containers in use, per node name. */
+    private final ConcurrentMap<String, Set<String>> live = new ConcurrentHashMap<String, Set<String>>();
+
+    /** Containers waiting to be removed, per node name, with the number of failed attempts. */
+    private final Map<String, Map<String, Integer>> queued = new HashMap<String, Map<String, Integer>>();
+
+    /** Nodes being drained, along with a client to do so. */
+    private final Map<String, Docker> draining = new HashMap<String, Docker>();
+
+    /** Orphans seen by the last scan, per node name. They are only removed if still orphan on the next one. */
+    private final Map<String, Set<String>> suspects = new HashMap<String, Set<String>>();
+
+    private volatile long lastScan;
+
+    static ContainerReaper get() {
+        return INSTANCE;
+    }
+
+    static String instanceId() {
+        return Jenkins.getInstance().getLegacyInstanceId();
+    }
+
+    void track(String nodeName, String container) {
+        Set<String> containers = live.get(nodeName);
+        if (containers == null) {
+            Set<String> created = Collections.synchronizedSet(new HashSet<String>());
+            containers = live.putIfAbsent(nodeName, created);
+            if (containers == null) {
+                containers = created;
+            }
+        }
+        containers.add(container);
+    }
+
+    void untrack(String nodeName, String container) {
+        Set<String> containers = live.get(nodeName);
+        if (containers != null) {
+            containers.remove(container);
+        }
+    }
+
+    /**
+     * Queues the container for removal and returns immediately.
+     */
+    void remove(Docker docker, String container) throws IOException, InterruptedException {
+        String node = docker.getNodeName();
+        untrack(node, container);
+        Docker detached = docker.detached();
+        synchronized (this) {
+            queue(node, container, 0);
+            boolean running = draining.put(node, detached) != null;
+            if (running) {
+                return;
+            }
+        }
+        drainInBackground(node);
+    }
+
+    private void queue(String node, String container, int attempts) {
+        Map<String, Integer> containers = queued.get(node);
+        if (containers == null) {
+            containers = new HashMap<String, Integer>();
+            queued.put(node, containers);
+        }
+        containers.put(container, attempts);
+    }
+
+    private void drainInBackground(final String node) {
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                drain(node);
+            }
+        });
+    }
+
+    /**
+     * Removes the containers queued for the node, in batches, until the queue is empty.
+     * Failed removals are left for the next sweep.
+     */
+    private void drain(String node) {
+        Map<String, Integer> retries = new HashMap<String, Integer>();
+        while (true) {
+            Docker docker;
+            Map<String, Integer> batch;
+            synchronized (this) {
+                batch = queued.remove(node);
+                if (batch == null || batch.isEmpty()) {
+                    draining.remove(node);
+                    for (Map.Entry<String, Integer> e : retries.entrySet()) {
+                        queue(node, e.getKey(), e.getValue());
+                    }
+                    return;
+                }
+                docker = draining.get(node);
+            }
+
+            try {
+                docker.remove(batch.keySet().toArray(new String[batch.size()]));
+                for (String container : batch.keySet()) {
+                    ContainerBuildData.release(docker, container);
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Failed to remove containers " + batch.keySet() + " on " + node, e);
+                for (Map.Entry<String, Integer> c : batch.entrySet()) {
+                    if (c.getValue() + 1 < MAX_ATTEMPTS) {
+                        retries.put(c.getKey(), c.getValue() + 1);
+                    } else {
+                        LOGGER.log(Level.WARNING, "Giving up removing container {0} on {1}", new Object[]{c.getKey(), node});
+                    }
+                }
+            }
+        }
+    }
+
+    void sweep(TaskListener listener) throws InterruptedException {
+        // retry failed removals, one container at a time so one failure doesn't fail the others
+        Map<String, Map<String, Integer>> retries;
+        synchronized (this) {
+            retries = new HashMap<String, Map<String, Integer>>();
+            for (Map.Entry<String, Map<String, Integer>> e : queued.entrySet()) {
+                if (!draining.containsKey(e.getKey())) {
+                    retries.put(e.getKey(), e.getValue());
+                }
+            }
+            queued.keySet().removeAll(retries.keySet());
+        }
+        for (Map.Entry<String, Map<String, Integer>> e : retries.entrySet()) {
+            Docker docker = forNode(e.getKey(), listener);
+            for (Map.Entry<String, Integer> c : e.getValue().entrySet()) {
+                try {
+                    if (docker == null) {
+                        throw new IOException("Node " + e.getKey() + " is offline");
+                    }
+                    docker.remove(c.getKey());
+                    ContainerBuildData.release(docker, c.getKey());
+                } catch (Exception x) {
+                    LOGGER.log(Level.FINE, "Failed to remove container " + c.getKey(), x);
+                    if (c.getValue() + 1 < MAX_ATTEMPTS) {
+                        synchronized (this) {
+                            queue(e.getKey(), c.getKey(), c.getValue() + 1);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (SWEEP_ORPHANS && System.currentTimeMillis() - lastScan > TimeUnit.SECONDS.toMillis(SCAN_PERIOD)) {
+            lastScan = System.currentTimeMillis();
+            scanOrphans(listener);
+        }
+    }
+
+    private void scanOrphans(TaskListener listener) throws InterruptedException {
+        for (Computer computer : Jenkins.getInstance().getComputers()) {
+            if (computer.isOffline()) {
+                continue;
+            }
+            String node = computer.getName();
+            Docker docker = forNode(node, listener);
+            if (docker == null) {
+                continue;
+            }
+
+            List<String> orphans = new ArrayList<String>();
+            try {
+                for (String container : docker.listContainers(LABEL + "=" + instanceId())) {
+                    Set<String> containers = live.get(node);
+                    if (containers == null || !containers.contains(container)) {
+                        orphans.add(container);
+                    }
+                }
+            } catch (Exception e) {
+                // most likely no docker on this node
+                LOGGER.log(Level.FINE, "Failed to list containers on " + node, e);
+                continue;
+            }
+
+            // containers just started may not be tracked yet, so only remove those seen orphan twice in a row
+            Set<String> previous;
+            synchronized (this) {
+                previous = suspects.put(node, new HashSet<String>(orphans));
+            }
+            for (String container : orphans) {
+                if (previous != null && previous.contains(container)) {
+                    listener.getLogger().println("Removing orphan container " + container + " on " + computer.getDisplayName());
+                    try {
+                        docker.remove(container);
+                    } catch (Exception e) {
+                        LOGGER.log(Level.FINE, "Failed to remove orphan container " + container, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Docker forNode(String nodeName, TaskListener listener) throws InterruptedException {
+        Jenkins jenkins = Jenkins.getInstance();
+        Node node = nodeName.length() == 0 ? jenkins : jenkins.getNode(nodeName);
+        if (node == null || node.toComputer() == null || node.toComputer().isOffline()) {
+            return null;
+        }
+        try {
+            return Docker.forNode(node, listener);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to get docker client for " + nodeName, e);
+            return null;
+        }
+    }
+
+    @Extension
+    public static class Sweep extends AsyncPeriodicWork {
+
+        public Sweep() {
+            super("Blueprint container reaper");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            INSTANCE.sweep(listener);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ContainerReaper.class.getName());
+}
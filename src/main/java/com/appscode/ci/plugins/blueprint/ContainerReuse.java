@@ -0,0 +1,203 @@
+package com.appscode.ci.plugins.blueprint;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the container of a job once its build completes, so the next build of the same job on the same node runs
+ * in it, with incremental compiler state and dependency caches still warm. Jobs opt in from their blueprint:
+ * <pre>
+ * docker:
+ *   reuse:
+ *     maxAge: 3600
+ *     maxBuilds: 20
+ * </pre>
+ * Containers are kept per node, job and {@link ContainerSpec#signature signature}, and laid out as pooled ones:
+ * the build environment is passed on each launch, and the build data written to the container's own directory is
+ * moved to the build's one once done.
+ * <p>
+ * Only containers of successful builds are kept. Before reuse, a container is reset and checked to be healthy, and
+ * it is removed once too old or used by too many builds.
+ */
+public final class ContainerReuse {
+
+    /**
+     * Kills the processes left over by the previous build, but the container command and the reset itself, and
+     * empties the build data dir. Fails if the container doesn't have its build data dir any more.
+     */
+    private static final String RESET =
+            "for p in /proc/[0-9]*; do p=${p#/proc/}; [ \"$p\" -eq 1 ] || [ \"$p\" -eq $$ ] || kill -9 \"$p\" 2>/dev/null; done\n" +
+            "rm -rf " + ContainerBuildData.PATH + "/* " + ContainerBuildData.PATH + "/.[!.]* " + ContainerBuildData.PATH + "/..?*\n" +
+            "test -d " + ContainerBuildData.PATH + " && [ -z \"$(ls -A " + ContainerBuildData.PATH + ")\" ]\n";
+
+    private static final ContainerReuse INSTANCE = new ContainerReuse();
+
+    private final Map<String, Parked> parked = new HashMap<String, Parked>();
+
+    static ContainerReuse get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a lease on the container kept for the key, or a lease without container if the build has to start
+     * its own. Kept containers are reset as root first, which also checks they are healthy.
+     */
+    Lease lease(Docker docker, String key, Policy policy) throws IOException, InterruptedException {
+        Parked p;
+        synchronized (this) {
+            p = parked.remove(key);
+        }
+        if (p != null) {
+            if (!p.isExpired(System.currentTimeMillis()) && docker.exec(p.container, "0", "/bin/sh", "-c", RESET) == 0) {
+                return new Lease(key, policy, p.container, p.created, p.builds);
+            }
+            LOGGER.log(Level.FINE, "Discarding kept container {0}", p.container);
+            p.discard();
+        }
+        return new Lease(key, policy, null, System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Keeps the container for the next build of the job, unless it reached its limits.
+     * Returns false if the container has to be removed as usual. Must only be called for successful builds, as the
+     * container may be left in any state by failed or aborted ones.
+     */
+    boolean park(Docker docker, Lease lease, String container) throws IOException, InterruptedException {
+        Parked p = new Parked(docker.detached(), container, lease.policy, lease.created, lease.builds + 1);
+        if (p.isExpired(System.currentTimeMillis())) {
+            return false;
+        }
+        Parked previous;
+        synchronized (this) {
+            previous = parked.put(lease.key, p);
+        }
+        if (previous != null) {
+            // a concurrent build of the same job kept its container first
+            previous.discard();
+        }
+        return true;
+    }
+
+    void evict() {
+        long now = System.currentTimeMillis();
+        List<Parked> expired = new ArrayList<Parked>();
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, Parked>> it = parked.entrySet().iterator(); it.hasNext(); ) {
+                Parked p = it.next().getValue();
+                if (p.isExpired(now)) {
+                    expired.add(p);
+                    it.remove();
+                }
+            }
+        }
+        for (Parked p : expired) {
+            p.discard();
+        }
+    }
+
+    /**
+     * How long, and for how many builds, a job's container can be reused.
+     */
+    static final class Policy {
+        final long maxAge;
+        final int maxBuilds;
+
+        Policy(long maxAge, int maxBuilds) {
+            this.maxAge = maxAge;
+            this.maxBuilds = maxBuilds;
+        }
+
+        /**
+         * Reads the <code>reuse</code> setting of the job docker section, either <code>true</code> or limits.
+         * Returns null when the job doesn't reuse its container.
+         */
+        static @CheckForNull Policy parse(JsonNode docker) {
+            JsonNode reuse = docker.path("reuse");
+            if (reuse.isObject()) {
+                return new Policy(reuse.path("maxAge").asLong(3600), reuse.path("maxBuilds").asInt(10));
+            }
+            if (reuse.asBoolean(false)) {
+                return new Policy(3600, 10);
+            }
+            return null;
+        }
+    }
+
+    static final class Lease {
+        final String key;
+        final Policy policy;
+        /** Container being reused, or null if the build started its own. */
+        final @CheckForNull String container;
+        final long created;
+        final int builds;
+
+        Lease(String key, Policy policy, String container, long created, int builds) {
+            this.key = key;
+            this.policy = policy;
+            this.container = container;
+            this.created = created;
+            this.builds = builds;
+        }
+    }
+
+    private static final class Parked {
+        private final Docker docker;
+        private final String container;
+        private final Policy policy;
+        private final long created;
+        private final int builds;
+
+        Parked(Docker docker, String container, Policy policy, long created, int builds) {
+            this.docker = docker;
+            this.container = container;
+            this.policy = policy;
+            this.created = created;
+            this.builds = builds;
+        }
+
+        boolean isExpired(long now) {
+            return builds >= policy.maxBuilds || now - created > TimeUnit.SECONDS.toMillis(policy.maxAge);
+        }
+
+        void discard() {
+            try {
+                ContainerReaper.get().remove(docker, container);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to remove kept container " + container, e);
+            }
+        }
+    }
+
+    @Extension
+    public static class Eviction extends AsyncPeriodicWork {
+
+        public Eviction() {
+            super("Blueprint kept container eviction");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            INSTANCE.evict();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ContainerReuse.class.getName());
+}
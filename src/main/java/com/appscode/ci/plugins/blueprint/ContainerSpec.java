@@ -0,0 +1,123 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.EnvVars;
+import hudson.Util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Everything needed to start a detached container with {@link Docker#runDetached(ContainerSpec)}, so the same
+ * container can be started again later on, e.g. to refill the {@link ContainerPool}.
+ */
+final class ContainerSpec {
+
+    final String image;
+    final String workdir;
+    /** Container paths by host path. */
+    final Map<String, String> volumes;
+    /** Container paths of the volumes mounted read-only. */
+    final Set<String> readOnly;
+    /** Options of the tmpfs mounts, such as <code>size=512m</code>, or empty strings, by container path. */
+    final Map<String, String> tmpfs;
+    final Map<Integer, Integer> ports;
+    final Map<String, String> links;
+    final EnvVars environment;
+    final Set sensitiveBuildVariables;
+    final String net;
+    final String memory;
+    final String cpu;
+    final String[] command;
+
+    ContainerSpec(String image, String workdir, Map<String, String> volumes, Map<Integer, Integer> ports, Map<String, String> links, EnvVars environment, Set sensitiveBuildVariables, String net, String memory, String cpu, String... command) {
+        this(image, workdir, volumes, Collections.<String>emptySet(), Collections.<String, String>emptyMap(), ports, links, environment, sensitiveBuildVariables, net, memory, cpu, command);
+    }
+
+    private ContainerSpec(String image, String workdir, Map<String, String> volumes, Set<String> readOnly, Map<String, String> tmpfs, Map<Integer, Integer> ports, Map<String, String> links, EnvVars environment, Set sensitiveBuildVariables, String net, String memory, String cpu, String... command) {
+        this.image = image;
+        this.workdir = workdir;
+        this.volumes = volumes;
+        this.readOnly = readOnly;
+        this.tmpfs = tmpfs;
+        this.ports = ports;
+        this.links = links;
+        this.environment = environment;
+        this.sensitiveBuildVariables = sensitiveBuildVariables;
+        this.net = net;
+        this.memory = memory;
+        this.cpu = cpu;
+        this.command = command;
+    }
+
+    ContainerSpec withEnvironment(EnvVars environment) {
+        return new ContainerSpec(image, workdir, volumes, readOnly, tmpfs, ports, links, environment, Collections.emptySet(), net, memory, cpu, command);
+    }
+
+    /**
+     * Returns the spec with the volumes mounted on the given container paths made read-only, and the tmpfs mounts.
+     */
+    ContainerSpec withMounts(Set<String> readOnly, Map<String, String> tmpfs) {
+        return new ContainerSpec(image, workdir, volumes, readOnly, tmpfs, ports, links, environment, sensitiveBuildVariables, net, memory, cpu, command);
+    }
+
+    /**
+     * Returns the spec with an additional bind mount, which isn't part of its {@link #signature}. It replaces any
+     * volume mounted on the same path.
+     */
+    ContainerSpec withVolume(String hostPath, String path) {
+        Map<String, String> volumes = new HashMap<String, String>(this.volumes);
+        volumes.values().remove(path);
+        volumes.put(hostPath, path);
+        return new ContainerSpec(image, workdir, volumes, readOnly, tmpfs, ports, links, environment, sensitiveBuildVariables, net, memory, cpu, command);
+    }
+
+    /**
+     * Returns the spec without the volumes of the given host paths.
+     */
+    ContainerSpec withoutVolumes(Collection<String> hostPaths) {
+        Map<String, String> volumes = new HashMap<String, String>(this.volumes);
+        volumes.keySet().removeAll(hostPaths);
+        return new ContainerSpec(image, workdir, volumes, readOnly, tmpfs, ports, links, environment, sensitiveBuildVariables, net, memory, cpu, command);
+    }
+
+    ContainerSpec forCell(String image, String workdir, EnvVars environment) {
+        return new ContainerSpec(image, workdir, volumes, readOnly, tmpfs, ports, links, environment, sensitiveBuildVariables, net, memory, cpu, command);
+    }
+
+    /**
+     * Digest of everything that can't be changed once the container is started, except its environment which can be
+     * passed on each <code>docker exec</code>.
+     */
+    String signature(String imageId, boolean privileged) {
+        StringBuilder s = new StringBuilder();
+        s.append("image=").append(imageId).append('\n');
+        s.append("privileged=").append(privileged).append('\n');
+        s.append("workdir=").append(workdir).append('\n');
+        s.append("volumes=").append(new TreeMap<String, String>(volumes)).append('\n');
+        s.append("readOnly=").append(new TreeSet<String>(readOnly)).append('\n');
+        s.append("tmpfs=").append(new TreeMap<String, String>(tmpfs)).append('\n');
+        s.append("ports=").append(new TreeMap<Integer, Integer>(ports)).append('\n');
+        s.append("links=").append(new TreeMap<String, String>(links)).append('\n');
+        s.append("net=").append(net).append('\n');
+        s.append("memory=").append(memory).append('\n');
+        s.append("cpu=").append(cpu).append('\n');
+        s.append("command=").append(Arrays.asList(command)).append('\n');
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return Util.toHexString(md.digest(s.toString().getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.appscode.ci.plugins.blueprint;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time spent by a build in each phase of its container lifecycle, shown on the {@link BuiltInContainer} badge.
+ * Each measure is also reported to {@link ContainerMetrics}, by node and image.
+ */
+public final class ContainerTimings implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+
+    private transient String nodeName;
+    private transient String image;
+
+    void setNodeName(String nodeName) {
+        this.nodeName = nodeName;
+    }
+
+    void setImage(String image) {
+        this.image = image;
+    }
+
+    /**
+     * Records the time elapsed since the given {@link System#nanoTime()}.
+     */
+    void record(String phase, long start) {
+        long nanos = System.nanoTime() - start;
+        synchronized (this) {
+            Phase p = phases.get(phase);
+            if (p == null) {
+                p = new Phase();
+                phases.put(phase, p);
+            }
+            p.count++;
+            p.nanos += nanos;
+        }
+        ContainerMetrics.get().observe(phase, nodeName, image, nanos);
+    }
+
+    /**
+     * Returns something like <code>load 12 ms, pull 3456 ms, launch 4x 120 ms</code>.
+     */
+    public synchronized String getSummary() {
+        StringBuilder s = new StringBuilder();
+        for (Map.Entry<String, Phase> e : phases.entrySet()) {
+            if (s.length() > 0) {
+                s.append(", ");
+            }
+            s.append(e.getKey()).append(' ');
+            if (e.getValue().count > 1) {
+                s.append(e.getValue().count).append("x ");
+            }
+            s.append(TimeUnit.NANOSECONDS.toMillis(e.getValue().nanos)).append(" ms");
+        }
+        return s.toString();
+    }
+
+    private static final class Phase implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private long count;
+        private long nanos;
+    }
+}
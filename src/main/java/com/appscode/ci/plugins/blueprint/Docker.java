@@ -1,12 +1,21 @@
 package com.appscode.ci.plugins.blueprint;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
 import hudson.model.AbstractBuild;
 import hudson.model.Computer;
+import hudson.model.Node;
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
 import hudson.util.ArgumentListBuilder;
+import jenkins.model.Jenkins;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.security.MasterToSlaveCallable;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
 import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.commons.lang.StringUtils;
@@ -16,6 +25,7 @@ import org.jenkinsci.plugins.docker.commons.tools.DockerTool;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringReader;
@@ -24,11 +34,17 @@ import java.net.InetAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
@@ -36,6 +52,29 @@ import java.util.regex.Pattern;
 public class Docker implements Closeable {
 
     private static boolean debug = Boolean.getBoolean(Docker.class.getName()+".debug");
+
+    /** Whether <code>docker build --iidfile</code> (Docker 17.06+) can be used to get the built image ID. */
+    private static final boolean IIDFILE = Boolean.getBoolean(Docker.class.getName() + ".iidfile");
+
+    /** How long a discovered docker0 IP is trusted, in seconds. */
+    private static final long DOCKER0_IP_TTL = Long.getLong(Docker.class.getName() + ".docker0IpTtl", 3600);
+
+    /** docker0 IP discovered per node name, as discovery may have to start containers. */
+    private static final ConcurrentMap<String, Docker0Ip> docker0Ips = new ConcurrentHashMap<String, Docker0Ip>();
+
+    /** Whether the container environment is read from the image config rather than from <code>env</code> in the container. */
+    static final boolean IMAGE_ENV = Boolean.getBoolean(Docker.class.getName() + ".imageEnv");
+
+    /** Environment from the image config, per image ID. */
+    private static final Map<String, EnvVars> imageEnvs = new LinkedHashMap<String, EnvVars>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, EnvVars> eldest) {
+            return size() > 256;
+        }
+    };
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
     private final Launcher launcher;
     private final TaskListener listener;
     private final String dockerExecutable;
@@ -43,16 +82,81 @@ public class Docker implements Closeable {
     private final boolean verbose;
     private final boolean privileged;
     private final AbstractBuild build;
+    private final String nodeName;
+    private final DockerEngineApi api;
     private EnvVars envVars;
+    private ContainerTimings timings;
 
     public Docker(AbstractBuild build, Launcher launcher, TaskListener listener, boolean verbose, boolean privileged) throws IOException, InterruptedException {
         this.dockerExecutable = DockerTool.getExecutable(null, Computer.currentComputer().getNode(), listener, build.getEnvironment(listener));
+        this.nodeName = Computer.currentComputer().getName();
         this.registryEndpoint = new DockerRegistryEndpoint(null, null);
         this.launcher = launcher;
         this.listener = listener;
         this.build = build;
         this.verbose = verbose | debug;
         this.privileged = privileged;
+        this.api = DockerEngineApi.forEnvironment(getEnvVars(), launcher.getChannel());
+    }
+
+    /* package */ Docker(String nodeName, String dockerExecutable, Launcher launcher, EnvVars envVars, boolean privileged) {
+        this.dockerExecutable = dockerExecutable;
+        this.nodeName = nodeName;
+        this.registryEndpoint = new DockerRegistryEndpoint(null, null);
+        this.launcher = launcher;
+        this.listener = TaskListener.NULL;
+        this.build = null;
+        this.verbose = debug;
+        this.privileged = privileged;
+        this.envVars = envVars;
+        this.api = DockerEngineApi.forEnvironment(envVars, launcher.getChannel());
+    }
+
+    /**
+     * Returns a Docker client for the same node which isn't bound to the build, for background work that may
+     * outlive it. It uses a plain node launcher, so commands aren't redirected into the build container.
+     */
+    /* package */ Docker detached() throws IOException, InterruptedException {
+        Jenkins jenkins = Jenkins.getInstance();
+        Node node = nodeName.length() == 0 ? jenkins : jenkins.getNode(nodeName);
+        if (node == null) {
+            throw new IOException("No such node: " + nodeName);
+        }
+        return new Docker(nodeName, dockerExecutable, node.createLauncher(TaskListener.NULL), getEnvVars(), privileged);
+    }
+
+    /**
+     * Returns a Docker client for the node, outside of any build.
+     */
+    /* package */ static Docker forNode(Node node, TaskListener listener) throws IOException, InterruptedException {
+        EnvVars env = node.toComputer().getEnvironment();
+        String executable = DockerTool.getExecutable(null, node, listener, env);
+        return new Docker(node.getNodeName(), executable, node.createLauncher(listener), env, false);
+    }
+
+    /**
+     * Returns a path on the node, rather than in any container.
+     */
+    /* package */ FilePath getNodePath(String path) {
+        return new FilePath(launcher.getChannel(), path);
+    }
+
+    /* package */ String getNodeName() {
+        return nodeName;
+    }
+
+    /* package */ boolean isPrivileged() {
+        return privileged;
+    }
+
+    /* package */ void setTimings(ContainerTimings timings) {
+        this.timings = timings;
+    }
+
+    private void record(String phase, long start) {
+        if (timings != null) {
+            timings.record(phase, start);
+        }
     }
 
     @Override
@@ -60,6 +164,30 @@ public class Docker implements Closeable {
     }
 
     public boolean hasImage(String image) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            if (ImageIndex.ENABLED && ImageIndex.get().lookup(this, image) != null) {
+                return true;
+            }
+            boolean found = inspectHasImage(image);
+            if (found && ImageIndex.ENABLED) {
+                ImageIndex.get().record(nodeName, image, null);
+            }
+            return found;
+        } finally {
+            record("inspect", start);
+        }
+    }
+
+    private boolean inspectHasImage(String image) throws IOException, InterruptedException {
+        if (api != null) {
+            try {
+                return api.hasImage(image);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Docker Engine API failed, falling back to CLI", e);
+            }
+        }
+
         ArgumentListBuilder args = dockerCommand()
             .add("inspect", image);
         
@@ -81,6 +209,27 @@ public class Docker implements Closeable {
     }
 
     public boolean pullImage(String image) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        boolean pulled = doPullImage(image);
+        record("pull", start);
+        if (pulled && ImageIndex.ENABLED) {
+            // the tag may now point to another image
+            ImageIndex.get().record(nodeName, image, null);
+        }
+        return pulled;
+    }
+
+    private boolean doPullImage(String image) throws IOException, InterruptedException {
+        if (api != null) {
+            try {
+                if (api.pullImage(image)) {
+                    return true;
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Docker Engine API failed, falling back to CLI", e);
+            }
+        }
+
         ArgumentListBuilder args = dockerCommand()
             .add("pull", image);
         
@@ -101,42 +250,85 @@ public class Docker implements Closeable {
         if (forcePull)
             args.add("--pull");
 
+        FilePath iidFile = null;
+        if (IIDFILE) {
+            FilePath tmp = new FilePath(launcher.getChannel(), launcher.getChannel().call(new GetTmpdir()));
+            iidFile = tmp.createTempFile("docker", ".iid");
+            args.add("--iidfile", iidFile.getRemote());
+        }
+
         args.add("--file", dockerfile)
             .add(workspace.getRemote());
 
         OutputStream logOutputStream = listener.getLogger();
         OutputStream err = listener.getLogger();
 
-        ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
-        TeeOutputStream teeOutputStream = new TeeOutputStream(logOutputStream, resultOutputStream);
+        // BuildKit reports progress, including the image ID, on stderr
+        ImageIdMatcher outMatcher = new ImageIdMatcher();
+        ImageIdMatcher errMatcher = new ImageIdMatcher();
+
+        String imageId;
+        long start = System.nanoTime();
+        try {
+            int status = launcher.launch()
+                    .envs(getEnvVars())
+                    .cmds(args)
+                    .stdout(new TeeOutputStream(logOutputStream, outMatcher))
+                    .stderr(new TeeOutputStream(err, errMatcher)).join();
+            record("build", start);
+            outMatcher.close();
+            errMatcher.close();
+            if (status != 0) {
+                throw new RuntimeException("Failed to build docker image from project Dockerfile");
+            }
 
-        int status = launcher.launch()
-                .envs(getEnvVars())
-                .cmds(args)
-                .stdout(teeOutputStream).stderr(err).join();
-        if (status != 0) {
-            throw new RuntimeException("Failed to build docker image from project Dockerfile");
+            imageId = iidFile != null ? iidFile.readToString().trim() : null;
+        } finally {
+            if (iidFile != null) {
+                iidFile.delete();
+            }
         }
-
-        Pattern pattern = Pattern.compile("Successfully built (.*)");
-        Matcher matcher = pattern.matcher(resultOutputStream.toString("UTF-8"));
-        if (!matcher.find())
-        {
-            throw new RuntimeException("Failed to lookup the docker build ImageID.");
+        if (imageId == null || imageId.equals("")) {
+            imageId = outMatcher.getImageId() != null ? outMatcher.getImageId() : errMatcher.getImageId();
         }
-        String imageId = matcher.group(1);
-        if (imageId.equals("")) {
+        if (imageId == null || imageId.equals("")) {
             throw new RuntimeException("Failed to lookup the docker build ImageID.");
         }
         return imageId;
     }
 
-    public void kill(String container) throws IOException, InterruptedException {
-        ArgumentListBuilder args = dockerCommand()
-            .add("kill", container);
+    public void kill(String... containers) throws IOException, InterruptedException {
+        listener.getLogger().println(containers.length > 1 ? "Stopping Docker containers after build completion" : "Stopping Docker container after build completion");
+        remove(containers);
+    }
 
+    /**
+     * Kills and removes the containers. <code>docker rm --force</code> kills running containers itself, so a single
+     * command does it for all of them.
+     */
+    public void remove(String... containers) throws IOException, InterruptedException {
+        if (api != null) {
+            // only the containers the API failed to remove are left to the CLI
+            List<String> failed = new ArrayList<String>();
+            for (String container : containers) {
+                try {
+                    api.removeContainer(container);
+                    ContainerReaper.get().untrack(nodeName, container);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Docker Engine API failed to remove " + container + ", falling back to CLI", e);
+                    failed.add(container);
+                }
+            }
+            if (failed.isEmpty()) {
+                return;
+            }
+            containers = failed.toArray(new String[failed.size()]);
+        }
+
+        ArgumentListBuilder args = dockerCommand()
+            .add("rm", "--force")
+            .add(containers);
 
-        listener.getLogger().println("Stopping Docker container after build completion");
         OutputStream out = verbose ? listener.getLogger() : new ByteArrayOutputStream();
         OutputStream err = verbose ? listener.getLogger() : new ByteArrayOutputStream();
         int status = launcher.launch()
@@ -144,21 +336,141 @@ public class Docker implements Closeable {
                 .cmds(args)
                 .stdout(out).stderr(err).quiet(!verbose).join();
         if (status != 0)
-            throw new RuntimeException("Failed to stop docker container "+container);
+            throw new RuntimeException("Failed to remove docker container "+StringUtils.join(containers, ' '));
 
-        args = new ArgumentListBuilder()
-            .add(dockerExecutable)
-            .add("rm", "--force", container);
-        status = launcher.launch()
+        for (String container : containers) {
+            ContainerReaper.get().untrack(nodeName, container);
+        }
+    }
+
+    /**
+     * Lists the full IDs of the containers with the given label, running or not.
+     */
+    public List<String> listContainers(String label) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+                .add("ps", "--all", "--quiet", "--no-trunc")
+                .add("--filter", "label=" + label);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = launcher.launch()
                 .envs(getEnvVars())
                 .cmds(args)
-                .stdout(out).stderr(err).quiet(!verbose).join();
-        if (status != 0)
-            throw new RuntimeException("Failed to remove docker container "+container);
+                .stdout(out).quiet(!verbose).stderr(verbose ? listener.getLogger() : new ByteArrayOutputStream()).join();
+        if (status != 0) {
+            throw new RuntimeException("Failed to list docker containers");
+        }
+
+        List<String> containers = new ArrayList<String>();
+        LineIterator it = new LineIterator(new StringReader(out.toString("UTF-8")));
+        while (it.hasNext()) {
+            String line = it.nextLine().trim();
+            if (line.length() > 0) {
+                containers.add(line);
+            }
+        }
+        return containers;
+    }
+
+    /**
+     * Creates a volume mounting the upper directory over the lower one, so writes to the volume go to the upper
+     * directory only. The work directory must be empty and on the same filesystem as the upper one.
+     */
+    public void createOverlayVolume(String name, String lower, String upper, String work) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+                .add("volume", "create")
+                .add("--driver", "local")
+                .add("--opt", "type=overlay")
+                .add("--opt", "device=overlay")
+                .add("--opt", "o=lowerdir=" + lower + ",upperdir=" + upper + ",workdir=" + work)
+                .add(name);
+
+        OutputStream out = verbose ? listener.getLogger() : new ByteArrayOutputStream();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+        if (status != 0) {
+            throw new RuntimeException("Failed to create docker volume " + name);
+        }
+    }
+
+    public void removeVolume(String name) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+                .add("volume", "rm", name);
+
+        OutputStream out = verbose ? listener.getLogger() : new ByteArrayOutputStream();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+        if (status != 0) {
+            throw new RuntimeException("Failed to remove docker volume " + name);
+        }
+    }
+
+    /**
+     * Deletes a directory of the node as root, from a container of the image, which only needs <code>rm</code>.
+     */
+    public void deleteAsRoot(String image, String path) throws IOException, InterruptedException {
+        int slash = path.lastIndexOf('/');
+        ArgumentListBuilder args = dockerCommand()
+                .add("run", "--rm", "--user", "0", "--entrypoint", "rm")
+                .add("--volume", path.substring(0, slash) + ":/mnt/parent:rw")
+                .add(image, "-rf", "/mnt/parent/" + path.substring(slash + 1));
+
+        OutputStream out = verbose ? listener.getLogger() : new ByteArrayOutputStream();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+        if (status != 0) {
+            throw new RuntimeException("Failed to remove " + path);
+        }
     }
 
     public String runDetached(String image, String workdir, Map<String, String> volumes, Map<Integer, Integer> ports, Map<String, String> links, EnvVars environment, Set sensitiveBuildVariables, String net, String memory, String cpu, String... command) throws IOException, InterruptedException {
-        String docker0 = getDocker0Ip(launcher, image);
+        return runDetached(new ContainerSpec(image, workdir, volumes, ports, links, environment, sensitiveBuildVariables, net, memory, cpu, command));
+    }
+
+    public String runDetached(ContainerSpec spec) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        // --add-host and --net=host are incompatible, so there's no need to discover the bridge IP
+        String docker0 = "host".equals(spec.net) ? null : getDocker0Ip(launcher, spec.image);
+
+        ArgumentListBuilder args = runDetachedCommand(spec, docker0, ContainerReaper.instanceId());
+        listener.getLogger().println(args.toString());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+
+        if (status != 0) {
+            throw new RuntimeException("Failed to run docker image");
+        }
+        String container = out.toString("UTF-8").trim();
+        ContainerReaper.get().track(nodeName, container);
+        record("runDetached", start);
+        return container;
+    }
+
+    /**
+     * Builds the <code>docker run</code> command line for the spec, labelling the container with its owner.
+     */
+    /* package */ ArgumentListBuilder runDetachedCommand(ContainerSpec spec, String docker0, String owner) {
+        String image = spec.image;
+        String workdir = spec.workdir;
+        Map<String, String> volumes = spec.volumes;
+        Map<Integer, Integer> ports = spec.ports;
+        Map<String, String> links = spec.links;
+        EnvVars environment = spec.environment;
+        Set sensitiveBuildVariables = spec.sensitiveBuildVariables;
+        String net = spec.net;
+        String memory = spec.memory;
+        String cpu = spec.cpu;
+        String[] command = spec.command;
 
         ArgumentListBuilder args = dockerCommand()
             .add("run", "--tty", "--detach");
@@ -166,8 +478,12 @@ public class Docker implements Closeable {
             args.add( "--privileged");
         }
         args.add("--workdir", workdir);
+        args.add("--label", ContainerReaper.LABEL + "=" + owner);
         for (Map.Entry<String, String> volume : volumes.entrySet()) {
-            args.add("--volume", volume.getKey() + ":" + volume.getValue() + ":rw" );
+            args.add("--volume", volume.getKey() + ":" + volume.getValue() + (spec.readOnly.contains(volume.getValue()) ? ":ro" : ":rw"));
+        }
+        for (Map.Entry<String, String> tmpfs : spec.tmpfs.entrySet()) {
+            args.add("--tmpfs", tmpfs.getValue().length() > 0 ? tmpfs.getKey() + ":" + tmpfs.getValue() : tmpfs.getKey());
         }
         for (Map.Entry<Integer, Integer> port : ports.entrySet()) {
             args.add("--publish", port.getKey() + ":" + port.getValue());
@@ -204,23 +520,30 @@ public class Docker implements Closeable {
                 args.add(e.getKey()+"="+e.getValue());
         }
         args.add(image).add(command);
-        listener.getLogger().println(args.toString());
-
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        return args;
+    }
 
-        int status = launcher.launch()
-                .envs(getEnvVars())
-                .cmds(args)
-                .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+    /**
+     * Returns the docker0 IP of this node, discovering it only if the cached one expired or the daemon restarted.
+     */
+    private String getDocker0Ip(Launcher launcher, String image) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            String daemonPid = new FilePath(launcher.getChannel(), "/var/run/docker.pid").act(new ReadIfExists());
+            Docker0Ip cached = docker0Ips.get(nodeName);
+            if (cached != null && cached.isValid(daemonPid)) {
+                return cached.ip;
+            }
 
-        if (status != 0) {
-            throw new RuntimeException("Failed to run docker image");
+            String ip = discoverDocker0Ip(launcher, image);
+            docker0Ips.put(nodeName, new Docker0Ip(ip, daemonPid));
+            return ip;
+        } finally {
+            record("getDocker0Ip", start);
         }
-        String container = out.toString("UTF-8").trim();
-        return container;
     }
 
-    private String getDocker0Ip(Launcher launcher, String image) throws IOException, InterruptedException {
+    private String discoverDocker0Ip(Launcher launcher, String image) throws IOException, InterruptedException {
 
         // On some distributions, docker doesn't start docker0 bridge until a container do require it
         // So let's run the container once, running /bin/true so it terminates immediately
@@ -283,6 +606,150 @@ public class Docker implements Closeable {
     }
 
 
+    /**
+     * Runs a command inside the container, returning its exit status.
+     */
+    public int exec(String container, String userId, String... command) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+                .add("exec")
+                .add("--user", userId)
+                .add(container)
+                .add(command);
+
+        OutputStream out = verbose ? listener.getLogger() : new ByteArrayOutputStream();
+        OutputStream err = verbose ? listener.getLogger() : new ByteArrayOutputStream();
+        return launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(err).quiet(!verbose).join();
+    }
+
+    public String getImageId(String image) throws IOException, InterruptedException {
+        if (ImageIndex.ENABLED) {
+            String id = ImageIndex.get().lookup(this, image);
+            if (id != null && id.length() > 0) {
+                return id;
+            }
+        }
+
+        ArgumentListBuilder args = dockerCommand()
+                .add("inspect", "--format", "{{.Id}}", image);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+        if (status != 0) {
+            throw new RuntimeException("Failed to inspect docker image " + image);
+        }
+        String id = out.toString("UTF-8").trim();
+        if (ImageIndex.ENABLED) {
+            ImageIndex.get().record(nodeName, image, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the IP address of the container on the default bridge network.
+     */
+    public String getContainerIp(String container) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+                .add("inspect", "--format", "{{.NetworkSettings.IPAddress}}", container);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+        if (status != 0) {
+            throw new RuntimeException("Failed to inspect docker container " + container);
+        }
+        return out.toString("UTF-8").trim();
+    }
+
+    /**
+     * Lists the images available on the node, mapping <code>repository:tag</code> references to image IDs.
+     */
+    public Map<String, String> listImages() throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+                .add("images", "--no-trunc")
+                .add("--format", "{{.ID}} {{.Repository}} {{.Tag}}");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+        if (status != 0) {
+            throw new RuntimeException("Failed to list docker images");
+        }
+
+        Map<String, String> images = new HashMap<String, String>();
+        LineIterator it = new LineIterator(new StringReader(out.toString("UTF-8")));
+        while (it.hasNext()) {
+            String[] fields = it.nextLine().trim().split(" ");
+            if (fields.length < 3) {
+                continue;
+            }
+            if (!"<none>".equals(fields[1]) && !"<none>".equals(fields[2])) {
+                images.put(fields[1] + ":" + fields[2], fields[0]);
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Returns the environment set by the image config, as the container would have before any <code>--env</code>.
+     * It only depends on the image, so it is read once per image ID.
+     */
+    public EnvVars getImageEnv(String image) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        String id = getImageId(image);
+        EnvVars env;
+        synchronized (imageEnvs) {
+            env = imageEnvs.get(id);
+        }
+        if (env == null) {
+            env = new EnvVars();
+            for (JsonNode line : inspectImageEnv(id)) {
+                env.addLine(line.asText());
+            }
+            synchronized (imageEnvs) {
+                imageEnvs.put(id, env);
+            }
+        }
+        record("imageEnv", start);
+        return new EnvVars(env);
+    }
+
+    private JsonNode inspectImageEnv(String id) throws IOException, InterruptedException {
+        if (api != null) {
+            try {
+                String inspect = api.inspectImage(id);
+                if (inspect != null) {
+                    return mapper.readTree(inspect).path("Config").path("Env");
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Docker Engine API failed, falling back to CLI", e);
+            }
+        }
+
+        ArgumentListBuilder args = dockerCommand()
+                .add("inspect", "--format", "{{json .Config.Env}}", id);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+        if (status != 0) {
+            throw new RuntimeException("Failed to inspect docker image " + id);
+        }
+        // an image without any ENV has a null Env
+        return mapper.readTree(out.toString("UTF-8").trim());
+    }
+
     public EnvVars getEnv(String container, Launcher launcher) throws IOException, InterruptedException {
         final ArgumentListBuilder args = dockerCommand()
                 .add("exec")
@@ -290,11 +757,13 @@ public class Docker implements Closeable {
                 .add(container)
                 .add("env");
 
+        long start = System.nanoTime();
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
         int status = launcher.launch()
                 .envs(getEnvVars())
                 .cmds(args)
                 .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+        record("getEnv", start);
 
         if (status != 0) {
             throw new RuntimeException("Failed to retrieve container's environment");
@@ -309,25 +778,77 @@ public class Docker implements Closeable {
     }
 
 
+    /**
+     * Starts a process inside the container with piped stdin and stdout, as used by {@link ExecSession}.
+     */
+    public Proc execInteractive(String container, String userId, Launcher launcher, String... command) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+                .add("exec", "--interactive")
+                .add("--user", userId)
+                .add(container)
+                .add(command);
+
+        return launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .writeStdin().readStdout()
+                .stderr(listener.getLogger()).quiet(!verbose).start();
+    }
+
     public void executeIn(String container, String userId, Launcher.ProcStarter starter, EnvVars environment) throws IOException, InterruptedException {
+        executeIn(container, userId, starter, environment, null);
+    }
+
+    /**
+     * Wraps the command with <code>docker exec</code>. When an env file is given, variables it already holds are
+     * sourced from it by a shell inside the container, and only the remaining ones are passed as arguments.
+     * Commands given an input get it forwarded instead of a tty, which would echo it back in the output.
+     */
+    public void executeIn(String container, String userId, Launcher.ProcStarter starter, EnvVars environment, ContainerEnvFile envFile) throws IOException, InterruptedException {
         List<String> prefix = dockerCommandArgs();
         prefix.add("exec");
-        prefix.add("--tty");
+        prefix.add(DockerLauncher.hasStdin(starter) ? "--interactive" : "--tty");
         prefix.add("--user");
         prefix.add(userId);
         prefix.add(container);
-        prefix.add("env");
+
+        Map<String, String> variables = envFile != null ? envFile.delta(environment) : null;
+        if (variables != null) {
+            prefix.add("/bin/sh");
+            prefix.add("-c");
+            prefix.add("set -a; . \"$0\"; set +a; exec env \"$@\"");
+            prefix.add(envFile.getRemote());
+        } else {
+            prefix.add("env");
+            variables = environment;
+        }
 
         // Build a list of environment, hidding node's one
-        for (Map.Entry<String, String> e : environment.entrySet()) {
+        Set sensitive = build != null ? build.getSensitiveBuildVariables() : Collections.emptySet();
+        boolean[] prefixMasks = null;
+        int prefixSize = prefix.size() + variables.size();
+        for (Map.Entry<String, String> e : variables.entrySet()) {
+            if (sensitive.contains(e.getKey())) {
+                if (prefixMasks == null) {
+                    prefixMasks = new boolean[prefixSize];
+                }
+                prefixMasks[prefix.size()] = true;
+            }
             prefix.add(e.getKey()+"="+e.getValue());
         }
 
+        boolean[] masks = starter.masks();
+        int commandSize = starter.cmds().size();
         starter.cmds().addAll(0, prefix);
-        if (starter.masks() != null) {
-            boolean[] masks = new boolean[starter.masks().length + prefix.size()];
-            System.arraycopy(starter.masks(), 0, masks, prefix.size(), starter.masks().length);
-            starter.masks(masks);
+        if (masks != null || prefixMasks != null) {
+            boolean[] merged = new boolean[prefixSize + commandSize];
+            if (prefixMasks != null) {
+                System.arraycopy(prefixMasks, 0, merged, 0, prefixSize);
+            }
+            if (masks != null) {
+                System.arraycopy(masks, 0, merged, prefixSize, masks.length);
+            }
+            starter.masks(merged);
         }
 
         starter.envs(getEnvVars());
@@ -346,4 +867,44 @@ public class Docker implements Closeable {
         args.add(dockerExecutable);
         return args;
     }
+
+    private static final class Docker0Ip {
+        private final String ip;
+        private final String daemonPid;
+        private final long expires;
+
+        Docker0Ip(String ip, String daemonPid) {
+            this.ip = ip;
+            this.daemonPid = daemonPid;
+            this.expires = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(DOCKER0_IP_TTL);
+        }
+
+        boolean isValid(String currentDaemonPid) {
+            if (System.currentTimeMillis() > expires) {
+                return false;
+            }
+            return daemonPid == null ? currentDaemonPid == null : daemonPid.equals(currentDaemonPid);
+        }
+    }
+
+    /**
+     * Returns the temporary directory of the node.
+     */
+    /* package */ static final class GetTmpdir extends MasterToSlaveCallable<String, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        public String call() {
+            return System.getProperty("java.io.tmpdir");
+        }
+    }
+
+    private static final class ReadIfExists extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        public String invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            return f.isFile() ? FileUtils.readFileToString(f).trim() : null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Docker.class.getName());
 }
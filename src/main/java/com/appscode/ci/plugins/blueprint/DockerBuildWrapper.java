@@ -2,12 +2,13 @@ package com.appscode.ci.plugins.blueprint;
 
 import com.appscode.ci.model.blueprint.Job;
 import com.appscode.ci.model.blueprint.Job.Docker.Volume;
+import com.fasterxml.jackson.databind.JsonNode;
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
 import hudson.model.*;
-import hudson.remoting.Callable;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
 import jenkins.security.MasterToSlaveCallable;
@@ -43,10 +44,51 @@ public class DockerBuildWrapper extends BuildWrapper {
         return decorated;
     }
 
+    /**
+     * Starts pulling the image used by the previous build while SCM checkout is running.
+     */
+    @Override
+    public void preCheckout(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+        BuiltInContainer runInContainer = build.getAction(BuiltInContainer.class);
+        if (!ImagePrefetch.ENABLED || runInContainer == null) {
+            return;
+        }
+        Job previous;
+        try {
+            previous = Blueprints.peekJob(build);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to read blueprint from previous checkout", e);
+            return;
+        }
+        if (previous == null || previous.getDocker() == null || Util.fixEmpty(previous.getDocker().getImage()) == null) {
+            return;
+        }
+
+        // the image is prepared again once checked out, so failing to prefetch it must not fail the build
+        String image;
+        Docker docker;
+        try {
+            image = build.getEnvironment(listener).expand(previous.getDocker().getImage());
+            docker = new Docker(build, launcher, listener, previous.getDocker().isVerbose(), previous.getDocker().isPrivileged()).detached();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to prefetch image of previous checkout", e);
+            return;
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Failed to prefetch image of previous checkout", e);
+            return;
+        }
+        runInContainer.setPrefetch(ImagePrefetch.start(image, previous.getDocker().isForcePull(), docker));
+        listener.getLogger().println("Pulling Docker image " + image + " during checkout ...");
+    }
+
     @Override
     public Environment setUp(AbstractBuild build, final Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
         // setUp is executed after checkout, so hook here to prepare and run Docker image to host the build
+        BuiltInContainer runInContainer = build.getAction(BuiltInContainer.class);
+        runInContainer.getTimings().setNodeName(Computer.currentComputer().getName());
+        long start = System.nanoTime();
         blueprint = Blueprints.loadJob(build);
+        runInContainer.getTimings().record("load", start);
         if (blueprint.getDocker() == null) {
             throw new NullPointerException("Job blueprint is not configured run inside Docker.");
         }
@@ -55,20 +97,26 @@ public class DockerBuildWrapper extends BuildWrapper {
             throw new NullPointerException("Job blueprint does not specify image or imageDockerFile.");
         }
 
-        if (Util.fixEmpty(blueprint.getDocker().getCommand()) == null) {
-            blueprint.getDocker().setCommand("/bin/cat");
-        }
-
-        BuiltInContainer runInContainer = build.getAction(BuiltInContainer.class);
+        JsonNode jobTree = Blueprints.loadJobTree(build);
         runInContainer.setUserId(whoAmI(launcher));
         runInContainer.setDocker(new Docker(build, launcher, listener, blueprint.getDocker().isVerbose(), blueprint.getDocker().isPrivileged()));
 
+        CacheVolumes caches = CacheVolumes.forJob(jobTree.path("docker"), build, runInContainer.getDocker(), launcher, listener);
+        ContainerReuse.Policy reuse = ContainerReuse.Policy.parse(jobTree.path("docker"));
+        if (caches != null && reuse != null) {
+            listener.getLogger().println("Job declares caches, its container won't be kept for the next build");
+            reuse = null;
+        }
+        // containers which outlive a build can't have the build environment, nor its build data dir, baked in,
+        // and can't mount the cache volumes of a single build
+        boolean sharedLayout = (ContainerPool.ENABLED || reuse != null) && caches == null;
+
         // mount slave root in Docker container so build process can access project workspace, tools, as well as jars copied by maven plugin.
         final String root = Computer.currentComputer().getNode().getRootPath().getRemote();
         runInContainer.bindMount(root);
 
         // mount tmpdir so we can access temporary file created to run shell build steps (and few others)
-        String tmp = build.getWorkspace().act(GetTmpdir);
+        String tmp = build.getWorkspace().act(new Docker.GetTmpdir());
         runInContainer.bindMount(tmp);
 
         // Mount directories so installed tools are available inside container
@@ -78,7 +126,10 @@ public class DockerBuildWrapper extends BuildWrapper {
         }
 
         String buildDataPath = build.getWorkspace().act(new BuildDataDirCreator(build.getUrl()));
-        volumes.add(new Volume(buildDataPath,                  "/mnt/build-data"));
+        // pooled or kept containers are started before the build, so they have a build data dir of their own instead
+        if (!sharedLayout) {
+            volumes.add(new Volume(buildDataPath,              "/mnt/build-data"));
+        }
         volumes.add(new Volume("/var/lib/jenkins/.ssh",        "/root/.ssh"));
         volumes.add(new Volume("/var/lib/jenkins/.m2",         "/root/.m2"));
         volumes.add(new Volume("/var/lib/jenkins/.appscode",   "/root/.appscode"));
@@ -87,21 +138,103 @@ public class DockerBuildWrapper extends BuildWrapper {
         volumes.add(new Volume("/usr/local/bin/kubectl",       "/usr/local/bin/kubectl"));
         volumes.add(new Volume("/usr/local/bin/appctl",        "/usr/local/bin/appctl"));
 
+        Set<String> readOnly = readOnlyPaths(jobTree.path("docker"));
+        readOnly.add("/usr/local/bin/kubectl");
+        readOnly.add("/usr/local/bin/appctl");
+
+        Map<String, String> cacheVolumes = Collections.emptyMap();
+        if (caches != null) {
+            runInContainer.setCaches(caches);
+            start = System.nanoTime();
+            cacheVolumes = caches.prepare();
+            runInContainer.getTimings().record("caches", start);
+        }
         for (Volume volume : volumes) {
-            runInContainer.bindMount(volume.getHostPath(), volume.getPath());
+            // managed caches replace the directories shared read-write by all builds
+            if (!cacheVolumes.containsValue(volume.getPath())) {
+                runInContainer.bindMount(volume.getHostPath(), volume.getPath(), readOnly.contains(volume.getPath()));
+            }
+        }
+        for (Map.Entry<String, String> volume : cacheVolumes.entrySet()) {
+            runInContainer.bindMount(volume.getKey(), volume.getValue());
+        }
+        for (JsonNode tmpfs : jobTree.path("docker").path("tmpfs")) {
+            String path = Util.fixEmpty(tmpfs.path("path").asText());
+            if (path == null) {
+                throw new IOException("tmpfs mounts require a path in .blueprint.yml");
+            }
+            runInContainer.mountTmpfs(path, Util.fixEmpty(tmpfs.path("size").asText()));
         }
 
         if (runInContainer.container == null) {
             if (runInContainer.image == null) {
+                start = System.nanoTime();
                 try {
-                    runInContainer.image = Blueprints.prepareDockerImage(blueprint, runInContainer.getDocker(), build, listener);
+                    runInContainer.image = Blueprints.prepareDockerImage(blueprint, runInContainer.getDocker(), build, listener, runInContainer.getPrefetch());
                 } catch (InterruptedException e) {
                     throw new RuntimeException("Interrupted");
                 }
+                runInContainer.getTimings().setImage(runInContainer.image);
+                runInContainer.getTimings().record("prepareDockerImage", start);
             }
 
-            runInContainer.container = startBuildContainer(runInContainer, build, listener);
-            listener.getLogger().println("Docker container " + runInContainer.container + " started to host the build");
+            List<MatrixCell> matrix = MatrixCell.parse(jobTree, build.getEnvironment(listener));
+            runInContainer.setMatrix(matrix);
+            // services start in the background, while the build container is started
+            ServiceContainers services = ServiceContainers.start(jobTree, build.getEnvironment(listener), runInContainer.getDocker(), listener);
+            runInContainer.setServices(services);
+            boolean ready = false;
+            try {
+                ContainerSpec spec = buildContainerSpec(runInContainer, build, listener);
+                if (sharedLayout) {
+                    runInContainer.container = startPooledContainer(runInContainer, spec, buildDataPath, reuse, build, listener);
+                } else {
+                    runInContainer.container = startBuildContainer(runInContainer, spec);
+                    listener.getLogger().println("Docker container " + runInContainer.container + " started to host the build");
+                }
+                if (!matrix.isEmpty()) {
+                    start = System.nanoTime();
+                    // cell containers only live for the build, so they always get its build data dir mounted
+                    MatrixCell.start(matrix, spec, cacheVolumes.keySet(), build.getWorkspace(), buildDataPath, runInContainer.getDocker(), blueprint.getDocker().isForcePull(), listener);
+                    runInContainer.getTimings().record("matrix", start);
+                }
+                if (Docker.IMAGE_ENV) {
+                    runInContainer.setContainerEnvironment(containerEnvironment(runInContainer.getDocker(), spec, sharedLayout));
+                }
+                if (!services.isEmpty()) {
+                    start = System.nanoTime();
+                    EnvVars overlay = runInContainer.getEnvironmentOverlay() != null ? new EnvVars(runInContainer.getEnvironmentOverlay()) : new EnvVars();
+                    overlay.putAll(services.await());
+                    runInContainer.setEnvironmentOverlay(overlay);
+                    runInContainer.getTimings().record("services", start);
+                }
+                ready = true;
+            } finally {
+                if (!ready) {
+                    discardContainers(runInContainer, services);
+                }
+            }
+        }
+
+        boolean ready = false;
+        try {
+            if (ContainerEnvFile.ENABLED && runInContainer.getEnvFile() == null) {
+                // the build data dir mounted in the build container only, unlike the tmpdir
+                String envDir = sharedLayout ? ContainerBuildData.getDir(runInContainer.container) : buildDataPath;
+                if (envDir != null) {
+                    runInContainer.setEnvFile(new ContainerEnvFile(new FilePath(launcher.getChannel(), envDir), ContainerBuildData.PATH, build.getSensitiveBuildVariables()));
+                }
+            }
+
+            if (ExecSession.ENABLED && runInContainer.getSession() == null) {
+                // launcher isn't yet enabled, so the session itself is started with a plain docker exec
+                runInContainer.setSession(ExecSession.start(runInContainer.getDocker(), runInContainer.container, runInContainer.getUserId(), launcher));
+            }
+            ready = true;
+        } finally {
+            if (!ready) {
+                discardContainers(runInContainer, runInContainer.getServices());
+            }
         }
 
         // We are all set, DockerDecoratedLauncher now can wrap launcher commands with docker-exec
@@ -110,12 +243,12 @@ public class DockerBuildWrapper extends BuildWrapper {
         return new Environment() {
             @Override
             public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
-                return build.getAction(BuiltInContainer.class).tearDown();
+                return build.getAction(BuiltInContainer.class).tearDown(build.getResult());
             }
         };
     }
 
-    private String startBuildContainer(BuiltInContainer runInContainer, AbstractBuild build, BuildListener listener) throws IOException {
+    private ContainerSpec buildContainerSpec(BuiltInContainer runInContainer, AbstractBuild build, BuildListener listener) throws IOException {
         try {
             EnvVars environment = buildContainerEnvironment(build, listener);
 
@@ -123,18 +256,138 @@ public class DockerBuildWrapper extends BuildWrapper {
 
             Map<String, String> links = new HashMap<String, String>();
 
-            String[] command = blueprint.getDocker().getCommand().length() > 0 ? blueprint.getDocker().getCommand().split(" ") : new String[0];
+            // blueprint is shared through the parse cache, so default the command here rather than updating it
+            String cmd = Util.fixEmpty(blueprint.getDocker().getCommand());
+            String[] command = cmd != null ? cmd.split(" ") : new String[]{"/bin/cat"};
 
-            return runInContainer.getDocker().runDetached(runInContainer.image, workdir,
+            return runInContainer.withMounts(new ContainerSpec(runInContainer.image, workdir,
                     runInContainer.getVolumes(build), runInContainer.getPortsMap(), links,
                     environment, build.getSensitiveBuildVariables(), /*blueprint.getDocker().getNet()*/ "host", blueprint.getDocker().getMemory(), blueprint.getDocker().getCpu(),
-                    command); // Command expected to hung until killed
+                    command), build); // Command expected to hung until killed
+
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted");
+        }
+    }
+
+    /**
+     * Computes the environment <code>env</code> would print in the container: the image config one, overridden by
+     * the variables passed to <code>docker run</code>, if any.
+     */
+    private EnvVars containerEnvironment(Docker docker, ContainerSpec spec, boolean sharedLayout) throws IOException {
+        try {
+            EnvVars env = docker.getImageEnv(spec.image);
+            // env used to run as root, so HOME was /root unless the image says otherwise
+            if (!env.containsKey("HOME")) {
+                env.put("HOME", "/root");
+            }
+            if (!sharedLayout) {
+                for (Map.Entry<String, String> e : spec.environment.entrySet()) {
+                    if (!"HOSTNAME".equals(e.getKey())) {
+                        env.put(e.getKey(), e.getValue());
+                    }
+                }
+            }
+            return env;
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted");
+        }
+    }
+
+    /**
+     * Removes the containers started for a build which failed to set up, as its environment won't be torn down.
+     */
+    private void discardContainers(BuiltInContainer runInContainer, ServiceContainers services) {
+        try {
+            if (runInContainer.container != null) {
+                runInContainer.setReuse(null);
+                runInContainer.tearDown();
+            } else {
+                List<String> containers = services.awaitContainers();
+                if (!containers.isEmpty()) {
+                    runInContainer.getDocker().remove(containers.toArray(new String[containers.size()]));
+                }
+                if (runInContainer.getCaches() != null) {
+                    runInContainer.getCaches().release(runInContainer.getImage());
+                }
+                if (runInContainer.getEnvFile() != null) {
+                    runInContainer.getEnvFile().delete();
+                    runInContainer.setEnvFile(null);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to remove containers of build which failed to start", e);
+        }
+    }
+
+    private String startBuildContainer(BuiltInContainer runInContainer, ContainerSpec spec) throws IOException {
+        try {
+            return runInContainer.getDocker().runDetached(spec);
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted");
+        }
+    }
+
+    /**
+     * Reuses the container kept from a previous build of the job, leases one from the warm pool, or starts one with
+     * the same layout. These containers have no build environment, so it is passed on each launch instead, and their
+     * build data dir is moved to the build's one once done.
+     */
+    private String startPooledContainer(BuiltInContainer runInContainer, ContainerSpec spec, String buildDataPath, ContainerReuse.Policy reuse, AbstractBuild build, BuildListener listener) throws IOException {
+        try {
+            Docker docker = runInContainer.getDocker();
+            ContainerSpec pooled = spec.withEnvironment(new EnvVars());
+            runInContainer.setEnvironmentOverlay(spec.environment);
+            runInContainer.setSharedBuildData(buildDataPath);
+
+            if (reuse != null) {
+                String key = docker.getNodeName() + ":" + build.getParent().getFullName() + ":"
+                        + pooled.signature(docker.getImageId(pooled.image), docker.isPrivileged());
+                ContainerReuse.Lease lease = ContainerReuse.get().lease(docker, key, reuse);
+                runInContainer.setReuse(lease);
+                if (lease.container != null) {
+                    listener.getLogger().println("Docker container " + lease.container + " kept from a previous build reused to host the build (" + (lease.builds + 1) + "/" + reuse.maxBuilds + ")");
+                    return lease.container;
+                }
+            }
 
+            String container = ContainerPool.ENABLED ? ContainerPool.get().lease(docker, pooled, "test", "-d", ContainerBuildData.PATH) : null;
+            if (container != null) {
+                listener.getLogger().println("Docker container " + container + " leased from the warm pool to host the build");
+                return container;
+            }
+
+            container = ContainerBuildData.runDetached(docker, pooled);
+            listener.getLogger().println("Docker container " + container + " started to host the build");
+            return container;
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted");
         }
     }
 
+    /**
+     * Container paths of the blueprint volumes flagged <code>readOnly</code>, which the blueprint model doesn't know:
+     * <pre>
+     * docker:
+     *   volumes:
+     *   - hostPath: /var/cache/gradle
+     *     path: /root/.gradle
+     *     readOnly: true
+     *   tmpfs:
+     *   - path: /var/lib/mysql
+     *     size: 512m
+     * </pre>
+     */
+    private static Set<String> readOnlyPaths(JsonNode docker) {
+        Set<String> paths = new HashSet<String>();
+        for (JsonNode volume : docker.path("volumes")) {
+            if (volume.path("readOnly").asBoolean(false)) {
+                paths.add(volume.path("path").asText());
+            }
+        }
+        return paths;
+    }
+
     /**
      * Create the container environment.
      * We can't just pass result of {@link AbstractBuild#getEnvironment(TaskListener)}, as this one do include slave host
@@ -181,13 +434,6 @@ public class DockerBuildWrapper extends BuildWrapper {
         }
     }
 
-    private static Callable<String, IOException> GetTmpdir = new MasterToSlaveCallable<String, IOException>() {
-        @Override
-        public String call() {
-            return System.getProperty("java.io.tmpdir");
-        }
-    };
-
     private static final class BuildDataDirCreator extends MasterToSlaveCallable<String, IOException> {
         private String buildUrl;
 
@@ -204,12 +450,14 @@ public class DockerBuildWrapper extends BuildWrapper {
             }
             buildUrl = buildUrl.substring(index + "job/".length());
             index = buildUrl.indexOf("/");
-            String path = "/mnt/ci-data/" + (index == -1 ? "" : buildUrl.substring(index + 1)) + "build-data";
+            String path = BUILD_DATA_ROOT + "/" + (index == -1 ? "" : buildUrl.substring(index + 1)) + "build-data";
             boolean created = new File(path).mkdirs();
             System.out.println(created ? "Build data dir is created" : "WARNING!!! Build data dir failed to create.");
             return path;
         }
     };
 
+    private static final String BUILD_DATA_ROOT = "/mnt/ci-data";
+
     private static final Logger LOGGER = Logger.getLogger(DockerBuildWrapper.class.getName());
 }
@@ -0,0 +1,82 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Computes on the node a SHA-256 digest of a Docker build context, covering the path and content of every file in
+ * it, along with the Dockerfile used to build it. Files excluded by <code>.dockerignore</code> are skipped, as they
+ * are not sent to the daemon.
+ */
+final class DockerContextDigest extends MasterToSlaveFileCallable<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final String dockerfile;
+
+    DockerContextDigest(String dockerfile) {
+        this.dockerfile = dockerfile;
+    }
+
+    public String invoke(File context, VirtualChannel channel) throws IOException, InterruptedException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        md.update(("dockerfile=" + dockerfile + "\0").getBytes("UTF-8"));
+
+        File ignoreFile = new File(context, ".dockerignore");
+        DockerIgnore ignore = ignoreFile.isFile() ? new DockerIgnore(FileUtils.readFileToString(ignoreFile)) : null;
+        digest(md, context, "", ignore);
+        return Util.toHexString(md.digest());
+    }
+
+    private void digest(MessageDigest md, File dir, String prefix, DockerIgnore ignore) throws IOException, InterruptedException {
+        String[] names = dir.list();
+        if (names == null) {
+            throw new IOException("Failed to list " + dir);
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            File f = new File(dir, name);
+            String path = prefix + name;
+            // Docker always sends the Dockerfile and .dockerignore, even when excluded
+            boolean excluded = ignore != null && ignore.isExcluded(path)
+                    && !path.equals(dockerfile) && !path.equals(".dockerignore");
+            if (f.isDirectory()) {
+                if (!Util.isSymlink(f) && !(excluded && ignore.canSkipExcludedDirectories())) {
+                    digest(md, f, path + "/", ignore);
+                }
+                continue;
+            }
+            if (excluded) {
+                continue;
+            }
+            md.update((path + "\0" + f.length() + "\0").getBytes("UTF-8"));
+            InputStream in = new FileInputStream(f);
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    md.update(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import jenkins.security.MasterToSlaveCallable;
+
+import javax.annotation.CheckForNull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * Talks to the Docker Engine REST API instead of forking a <code>docker</code> CLI process for each call.
+ * Requests are issued from the build node itself, so the JVM there keeps persistent HTTP connections to the daemon.
+ * <p>
+ * The API is only used with plain TCP endpoints (<code>DOCKER_HOST=tcp://...</code> without TLS), as the JVM can't
+ * open unix sockets. With the default unix socket, or TLS, every call goes through the CLI, which {@link Docker}
+ * also falls back to when a request fails or times out.
+ */
+class DockerEngineApi {
+
+    private static final boolean ENABLED = Boolean.getBoolean(Docker.class.getName() + ".engineApi");
+
+    /** Responses are truncated to their tail, which is where pull progress streams report errors. */
+    private static final int MAX_BODY = 1024 * 1024;
+
+    /**
+     * Milliseconds a request waits for the daemon to send anything, so a hung daemon doesn't hold the build. Pulls
+     * stream their progress, so they aren't limited as a whole.
+     */
+    private static final int READ_TIMEOUT = Integer.getInteger(Docker.class.getName() + ".engineApiReadTimeout", 300000);
+
+    private final String endpoint;
+    private final VirtualChannel channel;
+
+    DockerEngineApi(String endpoint, VirtualChannel channel) {
+        this.endpoint = endpoint;
+        this.channel = channel;
+    }
+
+    /**
+     * Returns an API client for the daemon configured in the node environment, or null if the CLI has to be used.
+     */
+    static @CheckForNull DockerEngineApi forEnvironment(EnvVars env, VirtualChannel channel) {
+        if (!ENABLED || channel == null) {
+            return null;
+        }
+        String host = Util.fixEmpty(env.get("DOCKER_HOST"));
+        if (host == null || !host.startsWith("tcp://") || Util.fixEmpty(env.get("DOCKER_TLS_VERIFY")) != null) {
+            return null;
+        }
+        return new DockerEngineApi("http://" + host.substring("tcp://".length()), channel);
+    }
+
+    public boolean hasImage(String image) throws IOException, InterruptedException {
+        Response response = call("GET", "/images/" + image + "/json");
+        if (response.status == 200) {
+            return true;
+        }
+        if (response.status == 404) {
+            return false;
+        }
+        throw response.failure();
+    }
+
+    public boolean pullImage(String image) throws IOException, InterruptedException {
+        String repository = image;
+        String tag = "latest";
+        int slash = image.lastIndexOf('/');
+        int colon = image.lastIndexOf(':');
+        if (image.indexOf('@') != -1) {
+            tag = null;
+        } else if (colon > slash) {
+            repository = image.substring(0, colon);
+            tag = image.substring(colon + 1);
+        }
+
+        String path = "/images/create?fromImage=" + URLEncoder.encode(repository, "UTF-8");
+        if (tag != null) {
+            path += "&tag=" + URLEncoder.encode(tag, "UTF-8");
+        }
+        Response response = call("POST", path);
+        // pull failures after the stream started are only reported in-band
+        return response.status == 200 && !response.body.contains("\"error\"");
+    }
+
+    /**
+     * Kills and removes the container in a single request.
+     */
+    public void removeContainer(String container) throws IOException, InterruptedException {
+        Response response = call("DELETE", "/containers/" + container + "?force=1");
+        if (response.status != 204 && response.status != 404) {
+            throw response.failure();
+        }
+    }
+
+    /**
+     * Returns the raw inspect JSON of the image, or null if it doesn't exist.
+     */
+    public @CheckForNull String inspectImage(String image) throws IOException, InterruptedException {
+        Response response = call("GET", "/images/" + image + "/json");
+        if (response.status == 404) {
+            return null;
+        }
+        if (response.status != 200) {
+            throw response.failure();
+        }
+        return response.body;
+    }
+
+    private Response call(String method, String path) throws IOException, InterruptedException {
+        return channel.call(new Request(method, endpoint + path, READ_TIMEOUT));
+    }
+
+    static final class Response implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        IOException failure() {
+            return new IOException("Docker Engine API returned " + status + ": " + body);
+        }
+    }
+
+    private static final class Request extends MasterToSlaveCallable<Response, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String method;
+        private final String url;
+        private final int readTimeout;
+
+        Request(String method, String url, int readTimeout) {
+            this.method = method;
+            this.url = url;
+            this.readTimeout = readTimeout;
+        }
+
+        public Response call() throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(readTimeout);
+            if ("POST".equals(method)) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(0);
+                connection.getOutputStream().close();
+            }
+
+            int status = connection.getResponseCode();
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (in != null) {
+                // read the whole response, so the connection goes back to the keep-alive pool
+                try {
+                    byte[] buf = new byte[8192];
+                    int n;
+                    while ((n = in.read(buf)) != -1) {
+                        if (body.size() + n > MAX_BODY) {
+                            byte[] tail = body.toByteArray();
+                            body.reset();
+                            body.write(tail, tail.length / 2, tail.length - tail.length / 2);
+                        }
+                        body.write(buf, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            return new Response(status, body.toString("UTF-8"));
+        }
+    }
+}
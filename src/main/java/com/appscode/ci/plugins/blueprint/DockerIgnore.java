@@ -0,0 +1,126 @@
+package com.appscode.ci.plugins.blueprint;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Matches paths of a Docker build context against <code>.dockerignore</code> patterns, following the Docker rules:
+ * the last matching pattern wins, <code>!</code> re-includes paths, and excluding a directory excludes its content.
+ */
+final class DockerIgnore implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+    private boolean hasExceptions;
+
+    DockerIgnore(String content) {
+        for (String line : content.split("\n")) {
+            String pattern = line.trim();
+            if (pattern.length() == 0 || pattern.startsWith("#")) {
+                continue;
+            }
+            boolean exception = pattern.startsWith("!");
+            if (exception) {
+                pattern = pattern.substring(1).trim();
+                hasExceptions = true;
+            }
+            while (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            while (pattern.endsWith("/")) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            if (pattern.startsWith("./")) {
+                pattern = pattern.substring(2);
+            }
+            if (pattern.length() > 0) {
+                rules.add(new Rule(pattern, exception));
+            }
+        }
+    }
+
+    /**
+     * Whether the path, relative to the context root and using <code>/</code> separators, is excluded.
+     */
+    boolean isExcluded(String path) {
+        String[] dirs = path.split("/");
+        boolean excluded = false;
+        for (Rule rule : rules) {
+            boolean match = rule.regex.matcher(path).matches();
+            if (!match && dirs.length > 1 && rule.depth < dirs.length) {
+                // a pattern matching a parent directory matches everything below it
+                StringBuilder parent = new StringBuilder(dirs[0]);
+                for (int i = 1; i < rule.depth; i++) {
+                    parent.append('/').append(dirs[i]);
+                }
+                match = rule.regex.matcher(parent).matches();
+            }
+            if (match) {
+                excluded = !rule.exception;
+            }
+        }
+        return excluded;
+    }
+
+    /**
+     * Whether nothing below an excluded directory can be re-included, so it doesn't need to be walked.
+     */
+    boolean canSkipExcludedDirectories() {
+        return !hasExceptions;
+    }
+
+    private static final class Rule implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Pattern regex;
+        private final int depth;
+        private final boolean exception;
+
+        Rule(String pattern, boolean exception) {
+            this.regex = Pattern.compile(toRegex(pattern));
+            this.depth = pattern.split("/").length;
+            this.exception = exception;
+        }
+    }
+
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                        i++;
+                        regex.append("(.*/)?");
+                    } else {
+                        regex.append(".*");
+                    }
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else if (c == '[') {
+                int end = glob.indexOf(']', i + 1);
+                if (end == -1) {
+                    regex.append("\\[");
+                } else {
+                    String range = glob.substring(i + 1, end);
+                    if (range.startsWith("^") || range.startsWith("!")) {
+                        range = "^" + range.substring(1);
+                    }
+                    regex.append('[').append(range.replace("\\", "\\\\")).append(']');
+                    i = end;
+                }
+            } else if (c == '\\' && i + 1 < glob.length()) {
+                regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+}
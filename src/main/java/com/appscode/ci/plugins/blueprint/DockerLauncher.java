@@ -6,11 +6,17 @@ import hudson.Launcher;
 import hudson.Proc;
 import hudson.model.AbstractBuild;
 import hudson.model.Environment;
+import hudson.model.TaskListener;
+import org.apache.commons.io.input.NullInputStream;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static org.apache.commons.lang.StringUtils.isEmpty;
 
@@ -24,6 +30,11 @@ public class DockerLauncher extends Launcher.DecoratedLauncher {
     private EnvVars env;
     private final Launcher launcher;
 
+    /** Environment handed to launches, along with what it was merged from. */
+    private EnvVars merged;
+    private EnvVars mergedOverlay;
+    private List<Environment> mergedEnvironments;
+
     public DockerLauncher(Launcher launcher, BuiltInContainer runInContainer, AbstractBuild build)
             throws IOException, InterruptedException {
         super(launcher);
@@ -32,6 +43,14 @@ public class DockerLauncher extends Launcher.DecoratedLauncher {
         this.build = build;
     }
 
+    /**
+     * Returns a launcher running commands in another container of the build, such as a matrix cell one, with the
+     * variables added to the build environment.
+     */
+    public DockerLauncher forContainer(String container, EnvVars variables) throws IOException, InterruptedException {
+        return new DockerLauncher(launcher, runInContainer.forContainer(container, variables), build);
+    }
+
     public Proc launch(String[] cmd, boolean[] mask, String[] env, InputStream in, OutputStream out, FilePath workDir) throws IOException {
         return launch(launch().cmds(cmd).masks(mask).envs(env).stdin(in).stdout(out).pwd(workDir));
     }
@@ -41,33 +60,114 @@ public class DockerLauncher extends Launcher.DecoratedLauncher {
         // Do not decorate launcher until SCM checkout completed
         if (!runInContainer.isEnabled()) return super.launch(starter);
 
+        long start = System.nanoTime();
+        LogPipe pipe = null;
+        if (LogPipe.ENABLED && starter.stdout() != null && !(starter.stdout() instanceof LogPipe)) {
+            pipe = new LogPipe(starter.stdout());
+            starter.stdout(pipe);
+        }
+        Proc proc = null;
         try {
             EnvVars environment = buildContainerEnvironment();
-            runInContainer.getDocker().executeIn(runInContainer.container, runInContainer.getUserId(), starter, environment);
+
+            ExecSession session = runInContainer.getSession();
+            if (session != null && canUseSession(starter) && session.tryReserve()) {
+                if (!starter.quiet()) {
+                    maskedPrintCommandLine(starter.cmds(), starter.masks(), starter.pwd());
+                }
+                try {
+                    proc = session.launch(starter.cmds(), environment, starter.pwd(), starter.stdout());
+                } catch (IOException e) {
+                    getListener().error("Exec session failed, falling back to docker exec: " + e.getMessage());
+                }
+            }
+
+            if (proc == null) {
+                runInContainer.getDocker().executeIn(runInContainer.container, runInContainer.getUserId(), starter, environment, runInContainer.getEnvFile());
+                proc = super.launch(starter);
+            }
+            runInContainer.getTimings().record("launch", start);
+            return pipe != null ? pipe.attach(proc) : proc;
         } catch (InterruptedException e) {
             throw new IOException("Caught InterruptedException", e);
+        } finally {
+            if (proc == null && pipe != null) {
+                // nothing will join the pipe, so stop its writer
+                try {
+                    pipe.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close output pipe", e);
+                }
+            }
         }
+    }
+
+    /**
+     * Whether the launch can run in the {@link ExecSession}, which can only forward merged output to a stream.
+     * Launches reading the process output have no stdout stream.
+     */
+    private static boolean canUseSession(ProcStarter starter) {
+        return !hasStdin(starter) && starter.stdout() != null && starter.stderr() == null;
+    }
 
-        return super.launch(starter);
+    /* package */ static boolean hasStdin(ProcStarter starter) {
+        return starter.stdin() != null && !(starter.stdin() instanceof NullInputStream);
     }
 
-    private EnvVars buildContainerEnvironment() throws IOException, InterruptedException {
+    /**
+     * Returns the environment for a launch. It is only merged again when build wrappers were set up or torn down
+     * since the last launch, so the returned instance is shared by launches and must not be modified.
+     */
+    private synchronized EnvVars buildContainerEnvironment() throws IOException, InterruptedException {
         if (this.env == null) {
-            this.env = runInContainer.getDocker().getEnv(runInContainer.container, launcher);
+            this.env = runInContainer.getContainerEnvironment() != null
+                    ? runInContainer.getContainerEnvironment()
+                    : runInContainer.getDocker().getEnv(runInContainer.container, launcher);
+        }
+        EnvVars overlay = runInContainer.getEnvironmentOverlay();
+        List<Environment> environments = build.getEnvironments();
+        if (merged == null || overlay != mergedOverlay || !sameEnvironments(environments)) {
+            merged = mergeEnvironment(env, overlay, environments, getListener());
+            mergedOverlay = overlay;
+            mergedEnvironments = new ArrayList<Environment>(environments);
+        }
+        return merged;
+    }
+
+    private boolean sameEnvironments(List<Environment> environments) {
+        if (environments.size() != mergedEnvironments.size()) {
+            return false;
+        }
+        for (int i = 0; i < environments.size(); i++) {
+            if (environments.get(i) != mergedEnvironments.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merges the container environment with the build wrappers ones, which are not allowed to change the PATH.
+     */
+    /* package */ static EnvVars mergeEnvironment(EnvVars containerEnv, EnvVars overlay, Iterable<? extends Environment> environments, TaskListener listener) {
+        EnvVars environment = new EnvVars(containerEnv);
+        if (overlay != null) {
+            environment.putAll(overlay);
         }
-        EnvVars environment = new EnvVars(env);
 
         // Let BuildWrapper customize environment, including PATH
-        for (Environment e : build.getEnvironments()) {
+        for (Environment e : environments) {
             e.buildEnvVars(environment);
         }
-        String originalPath = env.get("PATH", "");
+        String originalPath = containerEnv.get("PATH", "");
         String currentPath = environment.get("PATH", "");
         if (!currentPath.equals(originalPath) && !originalPath.isEmpty()) {
-            this.getListener().error("PATH can't be changed by build wrappers");
+            listener.error("PATH can't be changed by build wrappers");
             environment.override("PATH", originalPath);
         }
 
         return environment;
     }
+
+    private static final Logger LOGGER = Logger.getLogger(DockerLauncher.class.getName());
 }
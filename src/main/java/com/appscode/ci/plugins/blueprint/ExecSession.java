@@ -0,0 +1,249 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.Computer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A long-lived shell running inside the build container, used to run build step commands without paying for a
+ * <code>docker exec</code> on each launch.
+ * <p>
+ * Commands are written to the shell stdin, one at a time, and their output is read back from the shell stdout up to
+ * a per-session marker line carrying the exit code. Stdout and stderr are merged, and commands don't get any stdin,
+ * so {@link DockerLauncher} uses <code>docker exec</code> for commands with an input, or whose output is read by the
+ * caller or kept apart from their errors. It also does while a command is running, as the session is busy.
+ * <p>
+ * Each command gets a variable of its own, so killing it kills the processes which inherited the variable rather
+ * than the whole session.
+ */
+final class ExecSession {
+
+    static final boolean ENABLED = Boolean.getBoolean(ExecSession.class.getName() + ".enabled");
+
+    /** Partial lines longer than this are forwarded without waiting for the end of line. */
+    private static final int MAX_LINE = 8192;
+
+    /** Variable identifying the processes of a command. */
+    private static final String COMMAND_ID = "BLUEPRINT_EXEC_ID";
+
+    /** Kills the processes of the container whose environment has the command ID given as first argument. */
+    private static final String KILL =
+            "for p in /proc/[0-9]*; do\n" +
+            "  if tr '\\0' '\\n' <\"$p/environ\" 2>/dev/null | grep -qx \"" + COMMAND_ID + "=$1\"; then kill -9 \"${p#/proc/}\" 2>/dev/null; fi\n" +
+            "done\n" +
+            "true\n";
+
+    private final Docker docker;
+    private final String container;
+    private final Proc proc;
+    private final OutputStream stdin;
+    private final InputStream stdout;
+    private final String marker = "blueprint-exec-" + UUID.randomUUID();
+    private final Semaphore idle = new Semaphore(1);
+    private volatile boolean closed;
+
+    private ExecSession(Docker docker, String container, Proc proc) {
+        this.docker = docker;
+        this.container = container;
+        this.proc = proc;
+        this.stdin = proc.getStdin();
+        this.stdout = new BufferedInputStream(proc.getStdout());
+    }
+
+    static ExecSession start(Docker docker, String container, String userId, Launcher launcher) throws IOException, InterruptedException {
+        // the build launcher would run the kill command in the container, through the session itself
+        ExecSession session = new ExecSession(docker.detached(), container, docker.execInteractive(container, userId, launcher, "/bin/sh"));
+        session.write("exec 2>&1\n");
+        return session;
+    }
+
+    /**
+     * Reserves the session for the next {@link #launch}, returning false if it is busy or closed.
+     */
+    boolean tryReserve() {
+        if (closed || !idle.tryAcquire()) {
+            return false;
+        }
+        if (closed) {
+            idle.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs a command in the session, which has to be reserved first. The reservation is released once the command
+     * completed.
+     */
+    Proc launch(List<String> cmd, EnvVars environment, FilePath pwd, OutputStream out) throws IOException {
+        String id = UUID.randomUUID().toString();
+        StringBuilder script = new StringBuilder("(");
+        if (pwd != null) {
+            script.append("cd ").append(quote(pwd.getRemote())).append(" && ");
+        }
+        script.append("exec env ").append(COMMAND_ID).append('=').append(id);
+        for (Map.Entry<String, String> e : environment.entrySet()) {
+            script.append(' ').append(quote(e.getKey() + "=" + e.getValue()));
+        }
+        for (String arg : cmd) {
+            script.append(' ').append(quote(arg));
+        }
+        script.append(") </dev/null; printf '\\n%s:%d\\n' ").append(marker).append(" $?\n");
+
+        try {
+            write(script.toString());
+        } catch (IOException e) {
+            idle.release();
+            close();
+            throw e;
+        }
+
+        SessionProc proc = new SessionProc(id, out);
+        Computer.threadPoolForRemoting.submit(proc);
+        return proc;
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            stdin.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to close exec session", e);
+        }
+        try {
+            proc.kill();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to stop exec session", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void write(String s) throws IOException {
+        stdin.write(s.getBytes("UTF-8"));
+        stdin.flush();
+    }
+
+    /**
+     * Copies command output up to the marker line, and returns the exit code it carries.
+     * The line break just before the marker was added by the session, so it is dropped.
+     */
+    private int pump(OutputStream out) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        boolean pendingNewline = false;
+        int b;
+        while ((b = stdout.read()) != -1) {
+            if (b != '\n') {
+                line.write(b);
+                if (line.size() >= MAX_LINE) {
+                    if (pendingNewline) {
+                        out.write('\n');
+                        pendingNewline = false;
+                    }
+                    line.writeTo(out);
+                    line.reset();
+                }
+                continue;
+            }
+
+            String s = line.toString("UTF-8");
+            if (s.startsWith(marker + ":")) {
+                out.flush();
+                return Integer.parseInt(s.substring(marker.length() + 1).trim());
+            }
+            if (pendingNewline) {
+                out.write('\n');
+            }
+            line.writeTo(out);
+            line.reset();
+            pendingNewline = true;
+        }
+        throw new IOException("Exec session terminated");
+    }
+
+    private static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    private final class SessionProc extends Proc implements Runnable {
+        private final String id;
+        private final OutputStream out;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile int exitCode = -1;
+
+        SessionProc(String id, OutputStream out) {
+            this.id = id;
+            this.out = out;
+        }
+
+        public void run() {
+            try {
+                exitCode = pump(out);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Exec session failed", e);
+                close();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Exec session failed", e);
+                close();
+            } finally {
+                idle.release();
+                done.countDown();
+            }
+        }
+
+        @Override
+        public boolean isAlive() throws IOException, InterruptedException {
+            return done.getCount() > 0;
+        }
+
+        @Override
+        public void kill() throws IOException, InterruptedException {
+            if (done.getCount() > 0 && docker.exec(container, "0", "/bin/sh", "-c", KILL, "sh", id) != 0) {
+                // the command can't be told apart any more, so stop the whole session
+                close();
+            }
+            done.await();
+        }
+
+        @Override
+        public int join() throws IOException, InterruptedException {
+            done.await();
+            return exitCode;
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return null;
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ExecSession.class.getName());
+}
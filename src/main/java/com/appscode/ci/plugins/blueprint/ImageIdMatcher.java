@@ -0,0 +1,31 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Scans <code>docker build</code> output line by line for the ID of the built image, only keeping the last one
+ * found, so the build log doesn't have to be buffered.
+ */
+final class ImageIdMatcher extends LineTransformationOutputStream {
+
+    /** Classic builder, and BuildKit progress output. */
+    private static final Pattern IMAGE_ID = Pattern.compile("(?:Successfully built|writing image) (\\S+)");
+
+    private volatile String imageId;
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        Matcher matcher = IMAGE_ID.matcher(new String(b, 0, len, "UTF-8"));
+        if (matcher.find()) {
+            imageId = matcher.group(1);
+        }
+    }
+
+    String getImageId() {
+        return imageId;
+    }
+}
@@ -0,0 +1,141 @@
+package com.appscode.ci.plugins.blueprint;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index of the images available on each node, so {@link Docker#hasImage} and {@link Docker#getImageId}
+ * don't need a <code>docker inspect</code> per build.
+ * <p>
+ * The index of a node is loaded with a single <code>docker images</code> listing, refreshed once expired, and
+ * updated after the pulls and builds done by this plugin. Only positive answers are trusted: an image missing from
+ * the index is still inspected, as it may have been pulled by someone else since the listing.
+ * <p>
+ * Image IDs and digest references are always inspected. Unlike a tag, a locally built image or a digest removed
+ * since the listing isn't pulled back by <code>docker run</code>, so a stale answer for them would fail the build.
+ * <p>
+ * A tag moved outside of this plugin, e.g. by a <code>docker pull</code> on the node, still resolves to its previous
+ * image until the listing expires. As the image ID is part of the signature of pooled and kept containers, such a
+ * container could then be handed out for the previous image, so the index is opt-in.
+ */
+final class ImageIndex {
+
+    static final boolean ENABLED = Boolean.getBoolean(ImageIndex.class.getName() + ".enabled");
+
+    /** Seconds after which the listing of a node is reloaded. */
+    private static final long TTL = Long.getLong(ImageIndex.class.getName() + ".ttl", 300);
+
+    /**
+     * Full image IDs. Shorter hexadecimal strings are valid repository names, so they are looked up as such.
+     */
+    private static final Pattern IMAGE_ID = Pattern.compile("sha256:[0-9a-f]{64}|[0-9a-f]{64}");
+
+    private static final ImageIndex INSTANCE = new ImageIndex();
+
+    private final ConcurrentMap<String, NodeImages> nodes = new ConcurrentHashMap<String, NodeImages>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    static ImageIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the ID of the image if the index knows it is available on the node, an empty string if it is
+     * available but its ID isn't known, or null if the index can't tell.
+     */
+    @CheckForNull String lookup(Docker docker, String image) throws IOException, InterruptedException {
+        String id = isPinned(image) ? null : images(docker.getNodeName()).lookup(docker, normalize(image));
+        if (id == null) {
+            fallbacks.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return id;
+    }
+
+    /**
+     * Records an image known to be available on the node, with its ID if known.
+     */
+    void record(String nodeName, String image, @CheckForNull String id) {
+        if (!isPinned(image)) {
+            images(nodeName).record(normalize(image), id);
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    private NodeImages images(String nodeName) {
+        NodeImages images = nodes.get(nodeName);
+        if (images == null) {
+            NodeImages created = new NodeImages();
+            images = nodes.putIfAbsent(nodeName, created);
+            if (images == null) {
+                images = created;
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Whether the reference is an image ID or a digest, which the index doesn't answer for.
+     */
+    static boolean isPinned(String image) {
+        return image.indexOf('@') != -1 || IMAGE_ID.matcher(image).matches();
+    }
+
+    /**
+     * Adds the implicit <code>latest</code> tag, so references match the repository:tag pairs from the listing.
+     */
+    static String normalize(String image) {
+        if (isPinned(image)) {
+            return image;
+        }
+        int slash = image.lastIndexOf('/');
+        if (image.indexOf(':', slash + 1) == -1) {
+            return image + ":latest";
+        }
+        return image;
+    }
+
+    private static final class NodeImages {
+        private Map<String, String> refs = new HashMap<String, String>();
+        private long loaded;
+
+        synchronized String lookup(Docker docker, String image) throws IOException, InterruptedException {
+            if (System.currentTimeMillis() - loaded > TimeUnit.SECONDS.toMillis(TTL)) {
+                try {
+                    refs = docker.listImages();
+                } catch (RuntimeException e) {
+                    // keep whatever we know, and try listing again once expired
+                    LOGGER.log(Level.FINE, "Failed to list images", e);
+                }
+                loaded = System.currentTimeMillis();
+            }
+
+            return refs.get(image);
+        }
+
+        synchronized void record(String image, String id) {
+            refs.put(image, id != null ? id : "");
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ImageIndex.class.getName());
+}
@@ -0,0 +1,70 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+
+import javax.annotation.CheckForNull;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pull of the build image started before SCM checkout, so it runs while the checkout is in progress.
+ * The image is taken from the blueprint left in the workspace by the previous build, and only used if the checked
+ * out blueprint still asks for it, and doesn't force a pull the prefetch didn't do. Disabled by default.
+ */
+final class ImagePrefetch {
+
+    static final boolean ENABLED = Boolean.getBoolean(ImagePrefetch.class.getName() + ".enabled");
+
+    /** How long the build waits for the pull before pulling the image itself. */
+    private static final long TIMEOUT = Long.getLong(ImagePrefetch.class.getName() + ".timeoutSeconds", 600);
+
+    final String image;
+    final boolean forcePull;
+    private final Future<String> imageId;
+
+    private ImagePrefetch(String image, boolean forcePull, Future<String> imageId) {
+        this.image = image;
+        this.forcePull = forcePull;
+        this.imageId = imageId;
+    }
+
+    /**
+     * Starts pulling the image in the background. The docker client must not be bound to the build launcher, as
+     * the pull may still be running once the build container is started.
+     */
+    static ImagePrefetch start(final String image, final boolean forcePull, final Docker docker) {
+        return new ImagePrefetch(image, forcePull, Computer.threadPoolForRemoting.submit(new Callable<String>() {
+            public String call() throws Exception {
+                Blueprints.ensureImage(docker, image, forcePull, TaskListener.NULL);
+                return docker.getImageId(image);
+            }
+        }));
+    }
+
+    /**
+     * Whether the prefetched image can be used for a blueprint asking for the image, pulled again if forced.
+     */
+    boolean matches(String image, boolean forcePull) {
+        return this.image.equals(image) && (this.forcePull || !forcePull);
+    }
+
+    /**
+     * Waits for the pull to complete, returning the image ID, or null if it failed or didn't complete in time.
+     */
+    @CheckForNull String await(TaskListener listener) throws InterruptedException {
+        try {
+            return imageId.get(TIMEOUT, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            listener.getLogger().println("Failed to prefetch Docker image " + image + ": " + e.getCause().getMessage());
+            return null;
+        } catch (TimeoutException e) {
+            listener.getLogger().println("Docker image " + image + " still not pulled after " + TIMEOUT + " seconds");
+            imageId.cancel(true);
+            return null;
+        }
+    }
+}
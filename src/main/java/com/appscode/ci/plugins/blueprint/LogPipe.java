@@ -0,0 +1,312 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.Proc;
+import hudson.model.Computer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output stream handing the output of a launch over to a background writer, so a chatty process isn't slowed down
+ * by the build log. Output is buffered up to a bound, and written in chunks of whole lines once it stopped coming
+ * for a few milliseconds or the buffer is half full. Writes only block once the buffer is full.
+ * <p>
+ * Output beyond the {@link Policy} rate or size limit is dropped, which is reported in the log. Lines starting
+ * once the rate is reached for the current second are dropped whole, while the size limit cuts the output at the
+ * byte. The target stream is not closed along with the pipe.
+ */
+public final class LogPipe extends OutputStream {
+
+    /** Whether the output of launches in the container goes through a pipe. */
+    static final boolean ENABLED = Boolean.getBoolean(LogPipe.class.getName() + ".enabled");
+
+    /** Bytes buffered per launch before writes block. */
+    private static final int BUFFER = Integer.getInteger(LogPipe.class.getName() + ".buffer", 256 * 1024);
+
+    /** How long output is held, in milliseconds, so it is written in larger chunks. */
+    private static final long LINGER = Long.getLong(LogPipe.class.getName() + ".linger", 50);
+
+    private final OutputStream out;
+    private final Policy policy;
+    private final byte[] buffer = new byte[BUFFER];
+    private int count;
+    private long lastWrite;
+    private boolean closed;
+    private IOException failure;
+    /** Whether the output written so far ends with a partial line. */
+    private boolean partialLine;
+    private final Future<?> writer;
+
+    /* rate and size limits, guarded by this */
+    private long windowStart;
+    private long windowBytes;
+    private long totalBytes;
+    private long rateDropped;
+    private long limitDropped;
+    /** Whether the output admitted or dropped so far ends with a partial line, and if so whether it is dropped. */
+    private boolean midLine;
+    private boolean droppingLine;
+
+    public LogPipe(OutputStream out, Policy policy) {
+        this.out = out;
+        this.policy = policy;
+        this.writer = Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Uses the default policy: no rate or size limit.
+     */
+    public LogPipe(OutputStream out) {
+        this(out, Policy.UNLIMITED);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        try {
+            synchronized (this) {
+                int end = off + len;
+                while (off < end) {
+                    int eol = off;
+                    while (eol < end && b[eol] != '\n') {
+                        eol++;
+                    }
+                    int n = (eol < end ? eol + 1 : end) - off;
+                    append(b, off, admit(n, eol < end));
+                    off += n;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void append(byte[] b, int off, int len) throws IOException, InterruptedException {
+        while (len > 0) {
+            if (closed) {
+                throw new IOException("Pipe closed");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (count == buffer.length) {
+                wait();
+                continue;
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            lastWrite = System.nanoTime();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns how many bytes of a piece of a single line are kept according to the policy. Whether a line is
+     * dropped for the rate is decided once, as it starts.
+     */
+    private int admit(int len, boolean endsLine) {
+        if (policy.rate > 0) {
+            if (!midLine) {
+                long now = System.nanoTime();
+                if (now - windowStart > TimeUnit.SECONDS.toNanos(1)) {
+                    windowStart = now;
+                    windowBytes = 0;
+                }
+                droppingLine = windowBytes >= policy.rate;
+            }
+            midLine = !endsLine;
+            if (droppingLine) {
+                rateDropped += len;
+                return 0;
+            }
+            windowBytes += len;
+        }
+        if (policy.limit > 0 && totalBytes + len > policy.limit) {
+            int kept = (int) Math.max(0, policy.limit - totalBytes);
+            limitDropped += len - kept;
+            len = kept;
+        }
+        totalBytes += len;
+        return len;
+    }
+
+    /**
+     * Output is written asynchronously: flushing doesn't wait for it.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Waits for the buffered output to be written, and reports the output dropped, if any.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.get();
+        } catch (InterruptedException e) {
+            writer.cancel(true);
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        long rateDropped, limitDropped;
+        synchronized (this) {
+            rateDropped = this.rateDropped;
+            limitDropped = this.limitDropped;
+        }
+        if (partialLine && rateDropped + limitDropped > 0) {
+            out.write('\n');
+        }
+        if (rateDropped > 0) {
+            out.write(("[" + rateDropped + " bytes of output dropped, beyond " + policy.rate + " bytes per second]\n").getBytes("UTF-8"));
+        }
+        if (limitDropped > 0) {
+            out.write(("[output truncated after " + policy.limit + " bytes, " + limitDropped + " bytes dropped]\n").getBytes("UTF-8"));
+        }
+        out.flush();
+    }
+
+    private void drain() {
+        byte[] chunk = new byte[buffer.length];
+        try {
+            while (true) {
+                int n;
+                synchronized (this) {
+                    while (!closed && !(count > 0 && (count >= buffer.length / 2 || System.nanoTime() - lastWrite >= TimeUnit.MILLISECONDS.toNanos(LINGER)))) {
+                        if (count == 0) {
+                            wait();
+                        } else {
+                            wait(Math.max(1, LINGER - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastWrite)));
+                        }
+                    }
+                    if (closed && count == 0) {
+                        return;
+                    }
+                    n = count;
+                    if (!closed && count < buffer.length) {
+                        // keep a partial last line for the next chunk, unless it is all there is
+                        int eol = lastIndexOf(buffer, count, (byte) '\n');
+                        if (eol >= 0) {
+                            n = eol + 1;
+                        }
+                    }
+                    System.arraycopy(buffer, 0, chunk, 0, n);
+                    System.arraycopy(buffer, n, buffer, 0, count - n);
+                    count -= n;
+                    notifyAll();
+                }
+                out.write(chunk, 0, n);
+                out.flush();
+                partialLine = chunk[n - 1] != '\n';
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                failure = new InterruptedIOException();
+                notifyAll();
+            }
+        }
+    }
+
+    private static int lastIndexOf(byte[] b, int len, byte value) {
+        for (int i = len - 1; i >= 0; i--) {
+            if (b[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the process, whose {@link Proc#join} also waits for its output to be written.
+     */
+    public Proc attach(final Proc proc) {
+        return new Proc() {
+            @Override
+            public boolean isAlive() throws IOException, InterruptedException {
+                return proc.isAlive();
+            }
+
+            @Override
+            public void kill() throws IOException, InterruptedException {
+                try {
+                    proc.kill();
+                } finally {
+                    close();
+                }
+            }
+
+            @Override
+            public int join() throws IOException, InterruptedException {
+                try {
+                    return proc.join();
+                } finally {
+                    close();
+                }
+            }
+
+            @Override
+            public InputStream getStdout() {
+                return proc.getStdout();
+            }
+
+            @Override
+            public InputStream getStderr() {
+                return proc.getStderr();
+            }
+
+            @Override
+            public OutputStream getStdin() {
+                return proc.getStdin();
+            }
+        };
+    }
+
+    /**
+     * Limits on the output of a launch. Zero means no limit.
+     */
+    public static final class Policy {
+        static final Policy UNLIMITED = new Policy(0, 0);
+
+        /** Bytes per second. */
+        final long rate;
+        /** Bytes in total. */
+        final long limit;
+
+        public Policy(long rate, long limit) {
+            this.rate = rate;
+            this.limit = limit;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.appscode.ci.plugins.blueprint;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.util.DirScanner;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * A cell of the matrix declared by the job blueprint, with a container of its own running the job script at the same
+ * time as the other cells:
+ * <pre>
+ * matrix:
+ * - name: go1.6
+ *   image: golang:1.6
+ * - name: go1.7
+ *   image: golang:1.7
+ *   environment:
+ *     GO15VENDOREXPERIMENT: 1
+ * </pre>
+ * Cells default to the job image, and have the same mounts and build environment as the build container, with their
+ * own variables added. Their containers are started along with the build container, and removed along with it.
+ * <p>
+ * Each cell runs the job in a copy of the workspace, <code>.matrix/&lt;name&gt;</code>, made once checked out and
+ * used as the working directory of its container, and has a build data directory of its own,
+ * <code>matrix/&lt;name&gt;</code> in the build's one, so the cells don't write over each other's files. Cache
+ * volumes of the build aren't mounted in the cells, as their writes would be merged along with the build ones.
+ */
+public final class MatrixCell {
+
+    /** Directory of the workspace holding the copies of the cells. */
+    static final String WORKSPACES = ".matrix";
+
+    /** Directory of the build data directory holding the ones of the cells. */
+    private static final String BUILD_DATA = "matrix";
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9_.-]*");
+
+    private final String name;
+    private final String image;
+    private final EnvVars environment;
+    private volatile FilePath workspace;
+    private volatile String container;
+
+    private MatrixCell(String name, String image, EnvVars environment) {
+        this.name = name;
+        this.image = image;
+        this.environment = environment;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Variables of the cell, added to the build environment.
+     */
+    public EnvVars getEnvironment() {
+        return environment;
+    }
+
+    public String getContainer() {
+        return container;
+    }
+
+    /**
+     * Returns the copy of the workspace the cell runs in, once its container is started.
+     */
+    public FilePath getWorkspace() {
+        return workspace;
+    }
+
+    /**
+     * Reads the <code>matrix</code> of the job tree, returning an empty list if the job has none.
+     */
+    static List<MatrixCell> parse(JsonNode job, EnvVars buildEnvironment) throws IOException {
+        List<MatrixCell> cells = new ArrayList<MatrixCell>();
+        Set<String> names = new HashSet<String>();
+        for (JsonNode cell : job.path("matrix")) {
+            String name = Util.fixEmpty(cell.path("name").asText());
+            if (name == null || !NAME.matcher(name).matches() || !names.add(name)) {
+                throw new IOException("Matrix cells require a unique name, made of letters, digits, '_', '.' or '-', in .blueprint.yml");
+            }
+            EnvVars environment = new EnvVars();
+            Iterator<Map.Entry<String, JsonNode>> it = cell.path("environment").fields();
+            while (it.hasNext()) {
+                Map.Entry<String, JsonNode> e = it.next();
+                environment.put(e.getKey(), buildEnvironment.expand(e.getValue().asText()));
+            }
+            cells.add(new MatrixCell(name, Util.fixEmpty(buildEnvironment.expand(cell.path("image").asText())), environment));
+        }
+        return cells;
+    }
+
+    /**
+     * Returns the image of the cell, or null if it uses the job image.
+     */
+    String getImage() {
+        return image;
+    }
+
+    /**
+     * Copies the workspace for the cell, replacing the copy of a previous build, and returns the copy. Files ignored
+     * by SCMs by default, such as <code>.git</code>, are copied too.
+     */
+    /* package */ FilePath copyWorkspace(FilePath ws) throws IOException, InterruptedException {
+        FilePath copy = ws.child(WORKSPACES).child(name);
+        copy.deleteRecursive();
+        ws.copyRecursiveTo(new DirScanner.Glob("**/*", WORKSPACES + "/**", false), copy, name);
+        return copy;
+    }
+
+    /**
+     * Returns the spec of the cell container: the build container one, without the cache volumes, running in the
+     * copy of the workspace and with the build data directory of the cell, if the build has one.
+     */
+    /* package */ ContainerSpec spec(ContainerSpec spec, Collection<String> cacheVolumes, FilePath workspace, @CheckForNull String buildDataPath) {
+        EnvVars environment = new EnvVars(spec.environment);
+        environment.putAll(this.environment);
+        ContainerSpec cellSpec = spec.withoutVolumes(cacheVolumes).forCell(image != null ? image : spec.image, workspace.getRemote(), environment);
+        return buildDataPath != null ? cellSpec.withVolume(getBuildDataPath(buildDataPath), ContainerBuildData.PATH) : cellSpec;
+    }
+
+    private String getBuildDataPath(String buildDataPath) {
+        return buildDataPath + "/" + BUILD_DATA + "/" + name;
+    }
+
+    /**
+     * Starts the containers of the cells concurrently, from the build container spec, once their copy of the
+     * workspace is made. Waits for all of them even if one fails, so the containers started can all be removed with
+     * {@link #containers}.
+     */
+    static void start(List<MatrixCell> cells, final ContainerSpec spec, final Collection<String> cacheVolumes, final FilePath ws, final @CheckForNull String buildDataPath, final Docker docker, final boolean forcePull, final TaskListener listener) throws IOException, InterruptedException {
+        List<Future<String>> starts = new ArrayList<Future<String>>();
+        for (final MatrixCell cell : cells) {
+            starts.add(Computer.threadPoolForRemoting.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    if (cell.image != null) {
+                        Blueprints.ensureImage(docker, cell.image, forcePull, listener);
+                    }
+                    // created beforehand, as docker would create the directories owned by root
+                    cell.workspace = cell.copyWorkspace(ws);
+                    if (buildDataPath != null) {
+                        docker.getNodePath(cell.getBuildDataPath(buildDataPath)).mkdirs();
+                    }
+                    String container = docker.runDetached(cell.spec(spec, cacheVolumes, cell.workspace, buildDataPath));
+                    cell.container = container;
+                    listener.getLogger().println("Docker container " + container + " started for matrix cell " + cell.name);
+                    return container;
+                }
+            }));
+        }
+
+        IOException failure = null;
+        for (int i = 0; i < starts.size(); i++) {
+            try {
+                starts.get(i).get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = new IOException("Failed to start matrix cell " + cells.get(i).name, e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns the containers started for the cells.
+     */
+    static List<String> containers(List<MatrixCell> cells) {
+        if (cells.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> containers = new ArrayList<String>();
+        for (MatrixCell cell : cells) {
+            if (cell.container != null) {
+                containers.add(cell.container);
+            }
+        }
+        return containers;
+    }
+}
@@ -0,0 +1,149 @@
+package com.appscode.ci.plugins.blueprint;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service containers (databases, caches...) declared by the job blueprint, started along with the build container:
+ * <pre>
+ * docker:
+ *   image: golang:1.6
+ *   services:
+ *   - name: mysql
+ *     image: mysql:5.7
+ *     environment:
+ *       MYSQL_ROOT_PASSWORD: secret
+ *     healthcheck: mysqladmin ping -h 127.0.0.1
+ *     timeout: 120
+ * </pre>
+ * Services are started and health checked concurrently. The build container uses the host network, which can't be
+ * linked to other containers, so each service address is passed to the build as <code>&lt;NAME&gt;_HOST</code>.
+ */
+final class ServiceContainers {
+
+    private static final int DEFAULT_TIMEOUT = 60;
+
+    private final List<String> containers = Collections.synchronizedList(new ArrayList<String>());
+    private final Map<String, Future<String>> addresses = new LinkedHashMap<String, Future<String>>();
+
+    private ServiceContainers() {
+    }
+
+    /**
+     * Starts the services declared in the <code>docker</code> section of the job tree, if any, and returns
+     * immediately.
+     */
+    static ServiceContainers start(JsonNode job, EnvVars buildEnvironment, final Docker docker, final TaskListener listener) throws IOException {
+        final ServiceContainers services = new ServiceContainers();
+        // check all services first, so none is left running if one is invalid
+        Map<String, Callable<String>> tasks = new LinkedHashMap<String, Callable<String>>();
+        for (JsonNode service : job.path("docker").path("services")) {
+            final String name = Util.fixEmpty(service.path("name").asText());
+            final String image = Util.fixEmpty(buildEnvironment.expand(service.path("image").asText()));
+            if (name == null || image == null) {
+                throw new IOException("Services require a name and an image in .blueprint.yml");
+            }
+
+            EnvVars environment = new EnvVars();
+            Iterator<Map.Entry<String, JsonNode>> it = service.path("environment").fields();
+            while (it.hasNext()) {
+                Map.Entry<String, JsonNode> e = it.next();
+                environment.put(e.getKey(), buildEnvironment.expand(e.getValue().asText()));
+            }
+            String cmd = Util.fixEmpty(service.path("command").asText());
+            // service variables often hold credentials, such as database passwords, so none of them is printed
+            final ContainerSpec spec = new ContainerSpec(image, "/",
+                    Collections.<String, String>emptyMap(), Collections.<Integer, Integer>emptyMap(), Collections.<String, String>emptyMap(),
+                    environment, environment.keySet(), null, null, null,
+                    cmd != null ? cmd.split(" ") : new String[0]);
+            final String healthcheck = Util.fixEmpty(service.path("healthcheck").asText());
+            final int timeout = service.path("timeout").asInt(DEFAULT_TIMEOUT);
+
+            tasks.put(name, new Callable<String>() {
+                public String call() throws Exception {
+                    Blueprints.ensureImage(docker, image, false, listener);
+                    String container = docker.runDetached(spec);
+                    services.containers.add(container);
+                    listener.getLogger().println("Docker container " + container + " started for service " + name);
+                    if (healthcheck != null) {
+                        waitHealthy(docker, container, name, healthcheck, timeout, listener);
+                    }
+                    return docker.getContainerIp(container);
+                }
+            });
+        }
+        for (Map.Entry<String, Callable<String>> task : tasks.entrySet()) {
+            services.addresses.put(task.getKey(), Computer.threadPoolForRemoting.submit(task.getValue()));
+        }
+        return services;
+    }
+
+    private static void waitHealthy(Docker docker, String container, String name, String healthcheck, int timeout, TaskListener listener) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout);
+        while (docker.exec(container, "0", "/bin/sh", "-c", healthcheck) != 0) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Service " + name + " isn't healthy after " + timeout + "s");
+            }
+            Thread.sleep(1000);
+        }
+        listener.getLogger().println("Service " + name + " is healthy");
+    }
+
+    boolean isEmpty() {
+        return addresses.isEmpty();
+    }
+
+    /**
+     * Waits for all services to be healthy, returning the variables holding their addresses.
+     * Waits for all of them even if one fails, so no container is left starting in the background.
+     */
+    EnvVars await() throws IOException, InterruptedException {
+        EnvVars env = new EnvVars();
+        IOException failure = null;
+        for (Map.Entry<String, Future<String>> e : addresses.entrySet()) {
+            try {
+                env.put(e.getKey().toUpperCase(Locale.ENGLISH).replaceAll("[^A-Z0-9_]", "_") + "_HOST", e.getValue().get());
+            } catch (ExecutionException x) {
+                if (failure == null) {
+                    failure = new IOException("Failed to start service " + e.getKey(), x.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return env;
+    }
+
+    /**
+     * Waits for the services still starting, whether they succeed or not, and returns the containers started.
+     */
+    List<String> awaitContainers() throws InterruptedException {
+        for (Future<String> address : addresses.values()) {
+            try {
+                address.get();
+            } catch (ExecutionException e) {
+                // reported by await
+            }
+        }
+        synchronized (containers) {
+            return new ArrayList<String>(containers);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.appscode.ci.plugins.blueprint;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs at most one operation per key at a time, concurrent callers with the same key waiting for the result of the
+ * running one instead of repeating it.
+ */
+final class SingleFlight<V> {
+
+    private final ConcurrentMap<String, FutureTask<V>> running = new ConcurrentHashMap<String, FutureTask<V>>();
+
+    /**
+     * Runs the task in the calling thread, or waits for the task already running for the key.
+     * If the running task was interrupted, waiting callers run the task again instead of failing.
+     */
+    V execute(String key, Callable<V> task, Runnable onWait) throws IOException, InterruptedException {
+        while (true) {
+            FutureTask<V> created = new FutureTask<V>(task);
+            FutureTask<V> inFlight = running.putIfAbsent(key, created);
+            if (inFlight == null) {
+                try {
+                    created.run();
+                } finally {
+                    running.remove(key, created);
+                }
+                inFlight = created;
+            } else {
+                onWait.run();
+            }
+
+            try {
+                return inFlight.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof InterruptedException && inFlight != created) {
+                    continue;
+                }
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof InterruptedException) {
+                    throw (InterruptedException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+}
@@ -24,6 +24,9 @@
 package com.appscode.ci.plugins.blueprint.tasks;
 
 import com.appscode.ci.plugins.blueprint.Blueprints;
+import com.appscode.ci.plugins.blueprint.BuiltInContainer;
+import com.appscode.ci.plugins.blueprint.DockerLauncher;
+import com.appscode.ci.plugins.blueprint.MatrixCell;
 import hudson.*;
 import hudson.model.*;
 import hudson.remoting.ChannelClosedException;
@@ -32,6 +35,7 @@ import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.tasks.Messages;
 import hudson.util.FormValidation;
+import hudson.util.StreamTaskListener;
 import java.io.IOException;
 import java.io.ObjectStreamException;
 import hudson.util.LineEndingConversion;
@@ -42,7 +46,17 @@ import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.QueryParameter;
 
 import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,6 +66,13 @@ import java.util.logging.Logger;
  */
 public class BlueprintShell extends Builder {
 
+    /**
+     * Whether the script is passed to the shell on its standard input, rather than written to a temporary file in
+     * the workspace and deleted afterwards. Opt-in, as commands of the script which read their standard input would
+     * consume the rest of the script.
+     */
+    static final boolean STDIN = Boolean.getBoolean(BlueprintShell.class.getName() + ".stdin");
+
     @DataBoundConstructor
     public BlueprintShell() {
     }
@@ -70,6 +91,42 @@ public class BlueprintShell extends Builder {
             }
             throw new NullPointerException("no workspace from node " + node + " which is computer " + node.toComputer() + " and has channel " + node.getChannel());
         }
+        BuiltInContainer runInContainer = build.getAction(BuiltInContainer.class);
+        if (runInContainer != null && !runInContainer.getMatrix().isEmpty()) {
+            return performMatrix(build, runInContainer.getMatrix(), launcher, listener);
+        }
+        return perform(build, ws, launcher, listener, null);
+    }
+
+    /**
+     * Runs the steps, or the script, of the job with the given launcher. When output is captured, the script runs
+     * as a single step, named after the scope if not null.
+     */
+    private boolean perform(AbstractBuild<?, ?> build, FilePath ws, Launcher launcher, TaskListener listener, String scope) throws InterruptedException {
+        BlueprintSteps steps;
+        try {
+            steps = BlueprintSteps.parse(Blueprints.loadJobTree(build));
+            if (steps == null && StepLog.ENABLED) {
+                steps = BlueprintSteps.single(scope != null ? scope : "script", Blueprints.loadJob(build).getScript());
+                scope = null;
+            }
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.fatalError(Messages.CommandInterpreter_UnableToProduceScript()));
+            return false;
+        }
+        if (steps != null) {
+            try {
+                return steps.run(build, ws, launcher, getEnvironment(build, listener), getDescriptor().getShellOrDefault(ws.getChannel()), listener, scope);
+            } catch (IOException e) {
+                Util.displayIOException(e, listener);
+                e.printStackTrace(listener.fatalError(Messages.CommandInterpreter_CommandFailed()));
+                return false;
+            }
+        }
+        if (STDIN) {
+            return performFromStdin(build, ws, launcher, listener);
+        }
         FilePath script = null;
         int r = -1;
         try {
@@ -82,13 +139,7 @@ public class BlueprintShell extends Builder {
             }
 
             try {
-                EnvVars envVars = build.getEnvironment(listener);
-                // on Windows environment variables are converted to all upper case,
-                // but no such conversions are done on Unix, so to make this cross-platform,
-                // convert variables to all upper cases.
-                for (Map.Entry<String, String> e : build.getBuildVariables().entrySet())
-                    envVars.put(e.getKey(), e.getValue());
-
+                EnvVars envVars = getEnvironment(build, listener);
                 r = join(launcher.launch().cmds(buildCommandLine(script)).envs(envVars).stdout(listener).pwd(ws).start());
             } catch (IOException e) {
                 Util.displayIOException(e, listener);
@@ -119,6 +170,102 @@ public class BlueprintShell extends Builder {
         }
     }
 
+    /**
+     * Runs the job in the container of each matrix cell at the same time, each in its own copy of the workspace, and
+     * each line of output prefixed with the cell name. Succeeds only if the job succeeded in every cell.
+     */
+    private boolean performMatrix(final AbstractBuild<?, ?> build, List<MatrixCell> cells, Launcher launcher, TaskListener listener) throws InterruptedException {
+        if (!(launcher instanceof DockerLauncher)) {
+            listener.fatalError("Matrix cells require the build to run inside Docker");
+            return false;
+        }
+        Map<MatrixCell, Future<Boolean>> runs = new LinkedHashMap<MatrixCell, Future<Boolean>>();
+        List<String> failed = new ArrayList<String>();
+        try {
+            for (final MatrixCell cell : cells) {
+                final Launcher cellLauncher;
+                final OutputStream out;
+                try {
+                    cellLauncher = ((DockerLauncher) launcher).forContainer(cell.getContainer(), cell.getEnvironment());
+                    out = new PrefixedOutputStream(cell.getName(), listener.getLogger());
+                } catch (IOException e) {
+                    e.printStackTrace(listener.fatalError(Messages.CommandInterpreter_CommandFailed()));
+                    return false;
+                }
+                final TaskListener cellListener = new StreamTaskListener(out);
+                runs.put(cell, Computer.threadPoolForRemoting.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        try {
+                            return perform(build, cell.getWorkspace(), cellLauncher, cellListener, cell.getName());
+                        } finally {
+                            out.close();
+                        }
+                    }
+                }));
+            }
+            for (Map.Entry<MatrixCell, Future<Boolean>> run : runs.entrySet()) {
+                String name = run.getKey().getName();
+                boolean success;
+                try {
+                    success = run.getValue().get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(listener.error("[" + name + "] failed to run"));
+                    success = false;
+                }
+                listener.getLogger().println("[" + name + "] " + (success ? "succeeded" : "failed"));
+                if (!success) {
+                    failed.add(name);
+                }
+            }
+        } finally {
+            // interrupting the cells still running kills their processes
+            for (Future<Boolean> run : runs.values()) {
+                run.cancel(true);
+            }
+        }
+        if (!failed.isEmpty()) {
+            listener.error("Matrix cells failed: " + failed);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs <code>sh -xe -s</code> with the script as its input: a single launch, without any file to create and
+     * delete in the workspace.
+     */
+    private boolean performFromStdin(AbstractBuild<?, ?> build, FilePath ws, Launcher launcher, TaskListener listener) throws InterruptedException {
+        byte[] script;
+        try {
+            script = getContents(build).getBytes("UTF-8");
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.fatalError(Messages.CommandInterpreter_UnableToProduceScript()));
+            return false;
+        }
+
+        int r = -1;
+        try {
+            EnvVars envVars = getEnvironment(build, listener);
+            String shell = getDescriptor().getShellOrDefault(ws.getChannel());
+            r = join(launcher.launch().cmds(shell, "-xe", "-s").envs(envVars).stdin(new ByteArrayInputStream(script)).stdout(listener).pwd(ws).start());
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.fatalError(Messages.CommandInterpreter_CommandFailed()));
+        }
+        return r == 0;
+    }
+
+    private static EnvVars getEnvironment(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException {
+        EnvVars envVars = build.getEnvironment(listener);
+        // on Windows environment variables are converted to all upper case,
+        // but no such conversions are done on Unix, so to make this cross-platform,
+        // convert variables to all upper cases.
+        for (Map.Entry<String, String> e : build.getBuildVariables().entrySet())
+            envVars.put(e.getKey(), e.getValue());
+        return envVars;
+    }
+
     /**
      * Reports the exit code from the process.
      * <p>
@@ -137,7 +284,7 @@ public class BlueprintShell extends Builder {
      * makes the shell think the file is a binary file and not a script. Adding
      * a leading line feed works around this problem.
      */
-    private static String addLineFeedForNonASCII(String s) {
+    static String addLineFeedForNonASCII(String s) {
         if (!s.startsWith("#!")) {
             if (s.indexOf('\n') != 0) {
                 return "\n" + s;
@@ -181,6 +328,9 @@ public class BlueprintShell extends Builder {
          */
         private String shell;
 
+        /** Default interpreter resolved per node, as resolving it is a remote call. */
+        private final transient Map<VirtualChannel, String> interpreters = Collections.synchronizedMap(new WeakHashMap<VirtualChannel, String>());
+
         public DescriptorImpl() {
             load();
         }
@@ -208,9 +358,13 @@ public class BlueprintShell extends Builder {
             if (shell != null)
                 return shell;
 
-            String interpreter = null;
+            String interpreter = interpreters.get(channel);
+            if (interpreter != null)
+                return interpreter;
             try {
                 interpreter = channel.call(new Shellinterpreter());
+                if (interpreter != null)
+                    interpreters.put(channel, interpreter);
             } catch (IOException e) {
                 LOGGER.log(Level.WARNING, null, e);
             } catch (InterruptedException e) {
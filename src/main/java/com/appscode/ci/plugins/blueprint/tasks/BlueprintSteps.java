@@ -0,0 +1,269 @@
+package com.appscode.ci.plugins.blueprint.tasks;
+
+import com.appscode.ci.plugins.blueprint.LogPipe;
+import com.fasterxml.jackson.databind.JsonNode;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.util.LineEndingConversion;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+/**
+ * Named steps declared by the job blueprint instead of a single script, run as soon as the steps they need
+ * succeeded, so independent steps run at the same time in the build container:
+ * <pre>
+ * steps:
+ * - name: compile
+ *   script: make
+ * - name: lint
+ *   script: make lint
+ *   needs: [compile]
+ * - name: unit
+ *   script: make test
+ *   needs: [compile]
+ *   log:
+ *     rate: 65536
+ *     limit: 10485760
+ * </pre>
+ * Each line of output is prefixed with the name of its step, unless it is captured in a {@link StepLog}, in which
+ * case only the last lines of failed steps are written to the build log. Steps with <code>log</code> limits, in bytes per
+ * second and bytes in total, have their output written through a {@link LogPipe}, dropping what is beyond them. Once a step fails no other step is started, and the
+ * steps still running are waited for.
+ */
+final class BlueprintSteps {
+
+    /** Lines of captured output repeated in the build log when a step fails. */
+    private static final int TAIL = 50;
+
+    private final Map<String, Step> steps;
+
+    private BlueprintSteps(Map<String, Step> steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * Reads the <code>steps</code> of the job tree, returning null if the job has none.
+     */
+    static BlueprintSteps parse(JsonNode job) throws IOException {
+        Map<String, Step> steps = new LinkedHashMap<String, Step>();
+        Map<String, String> logNames = new HashMap<String, String>();
+        for (JsonNode node : job.path("steps")) {
+            String name = Util.fixEmpty(node.path("name").asText());
+            String script = Util.fixEmpty(node.path("script").asText());
+            if (name == null || script == null) {
+                throw new IOException("Steps require a name and a script in .blueprint.yml");
+            }
+            List<String> needs = new ArrayList<String>();
+            for (JsonNode need : node.path("needs")) {
+                needs.add(need.asText());
+            }
+            JsonNode log = node.path("log");
+            LogPipe.Policy policy = log.isObject() ? new LogPipe.Policy(log.path("rate").asLong(0), log.path("limit").asLong(0)) : null;
+            if (steps.put(name, new Step(name, script, needs, policy)) != null) {
+                throw new IOException("Step " + name + " is declared twice in .blueprint.yml");
+            }
+            String other = logNames.put(StepLog.fileName(name), name);
+            if (other != null) {
+                throw new IOException("Steps " + other + " and " + name + " only differ by characters other than letters, digits, '_', '.' or '-', so their logs can't be told apart");
+            }
+        }
+        if (steps.isEmpty()) {
+            return null;
+        }
+        for (Step step : steps.values()) {
+            for (String need : step.needs) {
+                if (!steps.containsKey(need)) {
+                    throw new IOException("Step " + step.name + " needs unknown step " + need);
+                }
+            }
+        }
+        checkAcyclic(steps);
+        return new BlueprintSteps(steps);
+    }
+
+    /**
+     * Returns a single step running the script.
+     */
+    static BlueprintSteps single(String name, String script) {
+        Map<String, Step> steps = new LinkedHashMap<String, Step>();
+        steps.put(name, new Step(name, script, new ArrayList<String>(), null));
+        return new BlueprintSteps(steps);
+    }
+
+    private static void checkAcyclic(Map<String, Step> steps) throws IOException {
+        Set<String> ordered = new HashSet<String>();
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (Step step : steps.values()) {
+                if (!ordered.contains(step.name) && ordered.containsAll(step.needs)) {
+                    ordered.add(step.name);
+                    progress = true;
+                }
+            }
+        }
+        if (ordered.size() < steps.size()) {
+            Set<String> cycle = new HashSet<String>(steps.keySet());
+            cycle.removeAll(ordered);
+            throw new IOException("Steps " + cycle + " depend on each other");
+        }
+    }
+
+    /**
+     * Runs the steps, returning whether they all succeeded. Captured step logs are named after the steps, prefixed
+     * with the scope, such as a matrix cell name, if not null.
+     */
+    boolean run(final AbstractBuild<?, ?> build, final FilePath ws, final Launcher launcher, final EnvVars env, final String shell, final TaskListener listener, final String scope) throws InterruptedException {
+        return run(new Runner() {
+            public int run(String step) throws Exception {
+                return steps.get(step).run(build, ws, launcher, env, shell, listener.getLogger(), scope);
+            }
+        }, listener);
+    }
+
+    /**
+     * Runs a step, returning its exit status.
+     */
+    interface Runner {
+        int run(String step) throws Exception;
+    }
+
+    /**
+     * Schedules the steps, each run by the runner once the steps it needs succeeded.
+     */
+    /* package */ boolean run(final Runner runner, TaskListener listener) throws InterruptedException {
+        PrintStream logger = listener.getLogger();
+        CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(Computer.threadPoolForRemoting);
+        Map<Future<Integer>, Step> running = new LinkedHashMap<Future<Integer>, Step>();
+        Set<String> started = new HashSet<String>();
+        Set<String> succeeded = new HashSet<String>();
+        boolean failed = false;
+        try {
+            while (true) {
+                if (!failed) {
+                    for (final Step step : steps.values()) {
+                        if (!started.contains(step.name) && succeeded.containsAll(step.needs)) {
+                            started.add(step.name);
+                            logger.println("[" + step.name + "] started");
+                            running.put(completion.submit(new Callable<Integer>() {
+                                public Integer call() throws Exception {
+                                    return runner.run(step.name);
+                                }
+                            }), step);
+                        }
+                    }
+                }
+                if (running.isEmpty()) {
+                    break;
+                }
+                Future<Integer> done = completion.take();
+                Step step = running.remove(done);
+                int status;
+                try {
+                    status = done.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(listener.error("[" + step.name + "] failed to run"));
+                    status = -1;
+                }
+                logger.println("[" + step.name + "] exited with " + status);
+                if (status == 0) {
+                    succeeded.add(step.name);
+                } else {
+                    failed = true;
+                }
+            }
+        } finally {
+            // interrupting the steps still running kills their processes
+            for (Future<Integer> f : running.keySet()) {
+                f.cancel(true);
+            }
+        }
+
+        if (succeeded.size() < steps.size()) {
+            Set<String> skipped = new HashSet<String>(steps.keySet());
+            skipped.removeAll(started);
+            if (!skipped.isEmpty()) {
+                logger.println("Steps not run: " + skipped);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static final class Step {
+        private final String name;
+        private final String script;
+        private final List<String> needs;
+        /** Limits on the step output, or null to write all of it as it comes. */
+        private final LogPipe.Policy log;
+
+        Step(String name, String script, List<String> needs, LogPipe.Policy log) {
+            this.name = name;
+            this.script = script;
+            this.needs = needs;
+            this.log = log;
+        }
+
+        int run(AbstractBuild<?, ?> build, FilePath ws, Launcher launcher, EnvVars env, String shell, PrintStream logger, String scope) throws IOException, InterruptedException {
+            String contents = BlueprintShell.addLineFeedForNonASCII(LineEndingConversion.convertEOL(script, LineEndingConversion.EOLType.Unix));
+            StepLog captured = StepLog.ENABLED ? StepLog.create(build, scope != null ? scope + "." + name : name) : null;
+            OutputStream target = captured != null ? captured : new PrefixedOutputStream(name, logger);
+            OutputStream out = log != null ? new LogPipe(target, log) : target;
+            int status;
+            try {
+                status = launch(ws, launcher, env, shell, contents, out);
+            } finally {
+                try {
+                    out.close();
+                } finally {
+                    target.close();
+                }
+            }
+            if (captured != null) {
+                logger.println("[" + name + "] " + captured.getLines() + " lines of output captured in Step Logs");
+                if (status != 0) {
+                    OutputStream tail = new PrefixedOutputStream(name, logger);
+                    try {
+                        captured.printTail(TAIL, tail);
+                    } finally {
+                        tail.close();
+                    }
+                }
+            }
+            return status;
+        }
+
+        private int launch(FilePath ws, Launcher launcher, EnvVars env, String shell, String contents, OutputStream out) throws IOException, InterruptedException {
+            if (BlueprintShell.STDIN) {
+                return launcher.launch().cmds(shell, "-xe", "-s").envs(env)
+                        .stdin(new ByteArrayInputStream(contents.getBytes("UTF-8"))).stdout(out).pwd(ws).join();
+            }
+            FilePath file = ws.createTextTempFile("hudson", ".sh", contents, false);
+            try {
+                return launcher.launch().cmds(shell, "-xe", file.getRemote()).envs(env).stdout(out).pwd(ws).join();
+            } finally {
+                file.delete();
+            }
+        }
+    }
+}
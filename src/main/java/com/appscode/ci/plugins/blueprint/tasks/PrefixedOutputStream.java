@@ -0,0 +1,35 @@
+package com.appscode.ci.plugins.blueprint.tasks;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Prefixes each line with a step or matrix cell name, writing whole lines so output of concurrent steps doesn't
+ * interleave within one.
+ */
+final class PrefixedOutputStream extends LineTransformationOutputStream {
+    private final byte[] prefix;
+    private final PrintStream logger;
+
+    PrefixedOutputStream(String name, PrintStream logger) throws IOException {
+        this.prefix = ("[" + name + "] ").getBytes("UTF-8");
+        this.logger = logger;
+    }
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        synchronized (logger) {
+            logger.write(prefix);
+            logger.write(b, 0, len);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // flushes the last line, if unterminated, without closing the build log
+        super.close();
+        logger.flush();
+    }
+}
@@ -0,0 +1,218 @@
+package com.appscode.ci.plugins.blueprint.tasks;
+
+import hudson.model.Run;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output of a step captured under the build directory instead of the build log, so large logs can be paged and
+ * searched without reading them whole.
+ * <p>
+ * The output is stored in <code>&lt;step&gt;.log.gz</code> as a series of gzip members of about 64 KiB of whole
+ * lines each, which together read as a single gzip file. <code>&lt;step&gt;.idx</code> has a line per member, with
+ * the number of its first line, its offset in the output and in the compressed file, and when it was started, so a
+ * page is read by decompressing from the member holding its first line.
+ */
+final class StepLog extends OutputStream {
+
+    /** Whether the output of steps is captured rather than written to the build log. */
+    static final boolean ENABLED = Boolean.getBoolean(StepLog.class.getName() + ".enabled");
+
+    static final String DIR = "step-logs";
+
+    private static final int CHUNK = 64 * 1024;
+
+    private final File dir;
+    private final String name;
+    private final CountingOutputStream file;
+    private final Writer index;
+    private GZIPOutputStream member;
+    private long memberBytes;
+    private long offset;
+    private long lines;
+
+    /* package */ StepLog(File dir, String name) throws IOException {
+        this.dir = dir;
+        this.name = name;
+        this.file = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, name + ".log.gz"))));
+        this.index = new OutputStreamWriter(new FileOutputStream(new File(dir, name + ".idx")), "UTF-8");
+    }
+
+    /**
+     * Creates the log of the step, replacing the one of a step with the same name, if any.
+     */
+    static StepLog create(Run<?, ?> build, String step) throws IOException {
+        File dir = new File(build.getRootDir(), DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        StepLogsAction.attach(build);
+        return new StepLog(dir, fileName(step));
+    }
+
+    /**
+     * Name of the log files of the step. Steps whose names only differ by other characters are rejected by
+     * {@link BlueprintSteps#parse}.
+     */
+    static String fileName(String step) {
+        return step.replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            if (member == null) {
+                index.write(lines + " " + offset + " " + file.getByteCount() + " " + System.currentTimeMillis() + "\n");
+                index.flush();
+                member = new GZIPOutputStream(file);
+                memberBytes = 0;
+            }
+            int eol = off;
+            while (eol < end && b[eol] != '\n') {
+                eol++;
+            }
+            int n = (eol < end ? eol + 1 : end) - off;
+            member.write(b, off, n);
+            memberBytes += n;
+            offset += n;
+            off += n;
+            if (eol < end) {
+                lines++;
+                if (memberBytes >= CHUNK) {
+                    finishMember();
+                }
+            }
+        }
+    }
+
+    private void finishMember() throws IOException {
+        // writes the member trailer, leaving the file open for the next member, and makes it readable
+        member.finish();
+        file.flush();
+        member = null;
+    }
+
+    /**
+     * Number of complete lines written so far.
+     */
+    synchronized long getLines() {
+        return lines;
+    }
+
+    /**
+     * Writes the last lines of the output, once closed.
+     */
+    void printTail(int count, OutputStream out) throws IOException {
+        PrintWriter w = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+        // the output may end with a partial line
+        read(dir, name, Math.max(0, getLines() - count), count + 1, null, w);
+        w.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (member != null) {
+                finishMember();
+            }
+        } finally {
+            IOUtils.closeQuietly(index);
+            file.close();
+        }
+    }
+
+    /**
+     * Writes up to <code>count</code> lines of the step output, starting at line <code>from</code>, counted from 0.
+     * When <code>search</code> is given, only the lines containing it are written. Returns the number of the line
+     * following the last one read, to get the next page from.
+     */
+    static long read(File dir, String step, long from, int count, String search, PrintWriter out) throws IOException {
+        String name = fileName(step);
+        Entry start = new Entry(0, 0);
+        for (Entry e : index(new File(dir, name + ".idx"))) {
+            if (e.line > from) {
+                break;
+            }
+            start = e;
+        }
+
+        InputStream in = new FileInputStream(new File(dir, name + ".log.gz"));
+        try {
+            IOUtils.skipFully(in, start.compressedOffset);
+            long line = start.line;
+            try {
+                // gzip members following the first one are read on as the same stream
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(in), "UTF-8"));
+                String s;
+                while (count > 0 && (s = reader.readLine()) != null) {
+                    if (line++ < from) {
+                        continue;
+                    }
+                    if (search == null || s.contains(search)) {
+                        out.println(s);
+                        count--;
+                    }
+                }
+            } catch (EOFException e) {
+                // the step is still running, and its last member isn't written yet
+            }
+            return line;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static List<Entry> index(File file) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (!file.isFile()) {
+            return entries;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String s;
+            while ((s = reader.readLine()) != null) {
+                String[] fields = s.split(" ");
+                if (fields.length == 4) {
+                    entries.add(new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[2])));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    private static final class Entry {
+        private final long line;
+        private final long compressedOffset;
+
+        Entry(long line, long compressedOffset) {
+            this.line = line;
+            this.compressedOffset = compressedOffset;
+        }
+    }
+}
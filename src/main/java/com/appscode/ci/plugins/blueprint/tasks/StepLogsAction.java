@@ -0,0 +1,109 @@
+package com.appscode.ci.plugins.blueprint.tasks;
+
+import hudson.Util;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pages through the {@link StepLog step logs} captured for a build. <code>log?step=&lt;step&gt;</code> returns up to
+ * <code>count</code> lines from line <code>from</code>, or only the lines containing <code>q</code>, along with the
+ * line to get the next page from in the <code>X-Next-Line</code> header.
+ */
+public class StepLogsAction implements RunAction2 {
+
+    private static final int MAX_COUNT = 10000;
+
+    private transient Run<?, ?> run;
+
+    static void attach(Run<?, ?> build) {
+        synchronized (StepLogsAction.class) {
+            if (build.getAction(StepLogsAction.class) == null) {
+                build.addAction(new StepLogsAction());
+            }
+        }
+    }
+
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    public String getIconFileName() {
+        return "notepad.png";
+    }
+
+    public String getDisplayName() {
+        return "Step Logs";
+    }
+
+    public String getUrlName() {
+        return "step-logs";
+    }
+
+    private File getDir() {
+        return new File(run.getRootDir(), StepLog.DIR);
+    }
+
+    public List<String> getSteps() {
+        List<String> steps = new ArrayList<String>();
+        String[] files = getDir().list();
+        if (files != null) {
+            for (String file : files) {
+                if (file.endsWith(".log.gz")) {
+                    steps.add(file.substring(0, file.length() - ".log.gz".length()));
+                }
+            }
+        }
+        Collections.sort(steps);
+        return steps;
+    }
+
+    public void doLog(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        String step = req.getParameter("step");
+        if (step == null || !getSteps().contains(step)) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        long from;
+        int count;
+        try {
+            from = Math.max(0, param(req, "from", 0));
+            count = (int) Math.min(MAX_COUNT, param(req, "count", 1000));
+        } catch (NumberFormatException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        StringWriter page = new StringWriter();
+        PrintWriter w = new PrintWriter(page);
+        long next = StepLog.read(getDir(), step, from, count, Util.fixEmpty(req.getParameter("q")), w);
+        w.flush();
+
+        rsp.setContentType("text/plain;charset=UTF-8");
+        rsp.setHeader("X-Next-Line", Long.toString(next));
+        rsp.getWriter().write(page.toString());
+    }
+
+    private static long param(StaplerRequest req, String name, long defaultValue) {
+        String value = Util.fixEmpty(req.getParameter(name));
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+}
@@ -0,0 +1,29 @@
+package com.appscode.ci.plugins.blueprint;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BuiltInContainerTest {
+
+    @Test
+    public void removesContainerOfBuildStillRunning() throws Exception {
+        RecordingLauncher launcher = new RecordingLauncher();
+        BuiltInContainer runInContainer = new BuiltInContainer();
+        runInContainer.setDocker(launcher.docker());
+        runInContainer.image = "golang:1.7";
+        runInContainer.container = "c1";
+        runInContainer.enable();
+
+        // the wrapper tears down before the build has a result
+        assertTrue(runInContainer.tearDown(null));
+
+        assertFalse(runInContainer.isEnabled());
+        assertEquals(Collections.singletonList(Arrays.asList("docker", "rm", "--force", "c1")), launcher.commands);
+    }
+}
@@ -0,0 +1,48 @@
+package com.appscode.ci.plugins.blueprint;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertTrue;
+
+public class ContainerMetricsTest {
+
+    private static String scrape() {
+        StringWriter out = new StringWriter();
+        PrintWriter w = new PrintWriter(out);
+        ContainerMetrics.get().write(w);
+        w.flush();
+        return out.toString();
+    }
+
+    @Test
+    public void histogramsAreCumulative() {
+        ContainerMetrics.get().observe("cumulative", "slave1", "alpine:3.2", 2000000L);
+        ContainerMetrics.get().observe("cumulative", "slave1", "alpine:3.2", 2000000000L);
+
+        String metrics = scrape();
+        assertTrue(metrics, metrics.contains("blueprint_node_phase_seconds_bucket{phase=\"cumulative\",node=\"slave1\",le=\"0.005\"} 1\n"));
+        assertTrue(metrics, metrics.contains("blueprint_node_phase_seconds_bucket{phase=\"cumulative\",node=\"slave1\",le=\"2.5\"} 2\n"));
+        assertTrue(metrics, metrics.contains("blueprint_node_phase_seconds_bucket{phase=\"cumulative\",node=\"slave1\",le=\"+Inf\"} 2\n"));
+        assertTrue(metrics, metrics.contains("blueprint_node_phase_seconds_count{phase=\"cumulative\",node=\"slave1\"} 2\n"));
+        assertTrue(metrics, metrics.contains("blueprint_image_phase_seconds_count{phase=\"cumulative\",image=\"alpine:3.2\"} 2\n"));
+    }
+
+    @Test
+    public void masterAndLabelValuesAreEscaped() {
+        ContainerMetrics.get().observe("escaped", "", "weird\"image", 1000L);
+
+        String metrics = scrape();
+        assertTrue(metrics, metrics.contains("blueprint_node_phase_seconds_count{phase=\"escaped\",node=\"master\"} 1\n"));
+        assertTrue(metrics, metrics.contains("blueprint_image_phase_seconds_count{phase=\"escaped\",image=\"weird\\\"image\"} 1\n"));
+    }
+
+    @Test
+    public void cacheCountersAreExposed() {
+        String metrics = scrape();
+        assertTrue(metrics, metrics.contains("# TYPE blueprint_cache_hits_total counter\n"));
+        assertTrue(metrics, metrics.contains("# TYPE blueprint_image_index_fallbacks_total counter\n"));
+    }
+}
@@ -0,0 +1,106 @@
+package com.appscode.ci.plugins.blueprint;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.remoting.LocalChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link DockerEngineApi} against a local stand-in for the Docker daemon.
+ */
+public class DockerEngineApiTest {
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private DockerEngineApi api;
+    private final List<String> requests = new ArrayList<String>();
+
+    @Before
+    public void startDaemon() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String request = exchange.getRequestMethod() + " " + exchange.getRequestURI();
+                synchronized (requests) {
+                    requests.add(request);
+                }
+                if (request.equals("GET /images/busybox:latest/json")) {
+                    respond(exchange, 200, "{\"Id\":\"sha256:abc\"}");
+                } else if (request.equals("POST /images/create?fromImage=busybox&tag=1.24")) {
+                    respond(exchange, 200, "{\"status\":\"Pulling\"}\n{\"status\":\"Done\"}\n");
+                } else if (request.startsWith("POST /images/create")) {
+                    respond(exchange, 200, "{\"status\":\"Pulling\"}\n{\"error\":\"not found\"}\n");
+                } else if (request.equals("DELETE /containers/c1?force=1")) {
+                    respond(exchange, 204, null);
+                } else {
+                    respond(exchange, 404, "{\"message\":\"no such object\"}");
+                }
+            }
+        });
+        server.start();
+
+        executor = Executors.newCachedThreadPool();
+        api = new DockerEngineApi("http://127.0.0.1:" + server.getAddress().getPort(), new LocalChannel(executor));
+    }
+
+    @After
+    public void stopDaemon() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void hasImage() throws Exception {
+        assertTrue(api.hasImage("busybox:latest"));
+        assertFalse(api.hasImage("missing:latest"));
+    }
+
+    @Test
+    public void pullImage() throws Exception {
+        assertTrue(api.pullImage("busybox:1.24"));
+        assertFalse(api.pullImage("registry:5000/missing"));
+        assertTrue(requests.contains("POST /images/create?fromImage=registry%3A5000%2Fmissing&tag=latest"));
+    }
+
+    @Test
+    public void removeContainer() throws Exception {
+        api.removeContainer("c1");
+        api.removeContainer("already-gone");
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void inspectImage() throws Exception {
+        assertEquals("{\"Id\":\"sha256:abc\"}", api.inspectImage("busybox:latest"));
+        assertNull(api.inspectImage("missing:latest"));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+}
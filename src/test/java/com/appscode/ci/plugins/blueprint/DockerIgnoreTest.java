@@ -0,0 +1,43 @@
+package com.appscode.ci.plugins.blueprint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DockerIgnoreTest {
+
+    private final DockerIgnore ignore = new DockerIgnore(
+            "# comment\n*.md\n!README.md\ntarget/\n**/*.log\n/tmp\ndocs/**/x?.txt\n");
+
+    @Test
+    public void lastMatchingPatternWins() {
+        assertTrue(ignore.isExcluded("CHANGES.md"));
+        assertFalse(ignore.isExcluded("README.md"));
+        assertFalse(ignore.canSkipExcludedDirectories());
+    }
+
+    @Test
+    public void patternsAreAnchoredAtContextRoot() {
+        assertFalse(ignore.isExcluded("sub/CHANGES.md"));
+        assertTrue(ignore.isExcluded("tmp"));
+        assertFalse(ignore.isExcluded("src/tmp"));
+    }
+
+    @Test
+    public void excludedDirectoryExcludesContent() {
+        assertTrue(ignore.isExcluded("target"));
+        assertTrue(ignore.isExcluded("target/classes/Main.class"));
+        assertTrue(ignore.isExcluded("tmp/file"));
+    }
+
+    @Test
+    public void doubleStarMatchesAnyDepth() {
+        assertTrue(ignore.isExcluded("build.log"));
+        assertTrue(ignore.isExcluded("a/b/build.log"));
+        assertTrue(ignore.isExcluded("docs/x1.txt"));
+        assertTrue(ignore.isExcluded("docs/a/b/x1.txt"));
+        assertFalse(ignore.isExcluded("docs/a/x10.txt"));
+        assertFalse(ignore.isExcluded("src/Main.java"));
+    }
+}
@@ -0,0 +1,51 @@
+package com.appscode.ci.plugins.blueprint;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class LogPipeTest {
+
+    @Test
+    public void writesAllOutputOnClose() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogPipe pipe = new LogPipe(out);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            String line = "line " + i + "\n";
+            pipe.write(line.getBytes("UTF-8"));
+            expected.append(line);
+        }
+        pipe.write("partial".getBytes("UTF-8"));
+        expected.append("partial");
+        pipe.close();
+
+        assertEquals(expected.toString(), out.toString("UTF-8"));
+    }
+
+    @Test
+    public void truncatesBeyondLimit() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogPipe pipe = new LogPipe(out, new LogPipe.Policy(0, 10));
+        pipe.write("0123456789abcdef\n".getBytes("UTF-8"));
+        pipe.close();
+
+        String log = out.toString("UTF-8");
+        assertEquals("0123456789\n[output truncated after 10 bytes, 7 bytes dropped]\n", log);
+    }
+
+    @Test
+    public void dropsWholeLinesBeyondRate() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogPipe pipe = new LogPipe(out, new LogPipe.Policy(10, 0));
+        pipe.write("0123".getBytes("UTF-8"));
+        pipe.write("456789abc\nnext".getBytes("UTF-8"));
+        pipe.write(" line\n".getBytes("UTF-8"));
+        pipe.close();
+
+        String log = out.toString("UTF-8");
+        assertEquals("0123456789abc\n[10 bytes of output dropped, beyond 10 bytes per second]\n", log);
+    }
+}
@@ -0,0 +1,123 @@
+package com.appscode.ci.plugins.blueprint;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import hudson.EnvVars;
+import hudson.FilePath;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MatrixCellTest {
+
+    private static final ObjectMapper YAML = new ObjectMapper(new YAMLFactory());
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void parsesCells() throws Exception {
+        EnvVars build = new EnvVars("GO", "golang", "VENDOR", "1");
+        List<MatrixCell> cells = MatrixCell.parse(job(
+                "matrix:\n" +
+                "- name: go1.6\n" +
+                "- name: go1.7\n" +
+                "  image: ${GO}:1.7\n" +
+                "  environment:\n" +
+                "    GO15VENDOREXPERIMENT: ${VENDOR}\n"), build);
+
+        assertEquals(2, cells.size());
+        assertEquals("go1.6", cells.get(0).getName());
+        assertNull(cells.get(0).getImage());
+        assertTrue(cells.get(0).getEnvironment().isEmpty());
+        assertEquals("go1.7", cells.get(1).getName());
+        assertEquals("golang:1.7", cells.get(1).getImage());
+        assertEquals("1", cells.get(1).getEnvironment().get("GO15VENDOREXPERIMENT"));
+    }
+
+    @Test
+    public void noMatrix() throws Exception {
+        assertTrue(MatrixCell.parse(job("script: make\n"), new EnvVars()).isEmpty());
+    }
+
+    @Test
+    public void rejectsMissingName() throws Exception {
+        assertRejected("matrix:\n- image: golang:1.7\n");
+    }
+
+    @Test
+    public void rejectsDuplicateName() throws Exception {
+        assertRejected("matrix:\n- name: go\n- name: go\n  image: golang:1.7\n");
+    }
+
+    @Test
+    public void rejectsNameUnfitForDirectory() throws Exception {
+        assertRejected("matrix:\n- name: ../go\n");
+    }
+
+    @Test
+    public void copiesWorkspace() throws Exception {
+        FilePath ws = new FilePath(tmp.newFolder());
+        ws.child("src/main.go").write("package main", "UTF-8");
+        MatrixCell cell = MatrixCell.parse(job("matrix:\n- name: go1.7\n"), new EnvVars()).get(0);
+        // left over by a previous build
+        ws.child(".matrix/go1.7/stale").write("", "UTF-8");
+
+        FilePath copy = cell.copyWorkspace(ws);
+
+        assertEquals(ws.child(".matrix/go1.7"), copy);
+        assertEquals("package main", copy.child("src/main.go").readToString());
+        assertFalse(copy.child("stale").exists());
+        assertFalse(copy.child(".matrix").exists());
+    }
+
+    @Test
+    public void runsInCopyOfWorkspace() throws Exception {
+        Map<String, String> volumes = new HashMap<String, String>();
+        volumes.put("/var/lib/jenkins", "/var/lib/jenkins");
+        volumes.put("/mnt/ci-data/job/1", ContainerBuildData.PATH);
+        volumes.put("/var/lib/jenkins/caches/go/upper", "/go/pkg");
+        ContainerSpec spec = new ContainerSpec("golang:1.6", "/var/lib/jenkins/workspace/job", volumes,
+                new HashMap<Integer, Integer>(), new HashMap<String, String>(), new EnvVars("GOPATH", "/go"),
+                Collections.emptySet(), "host", null, null, "/bin/cat");
+        MatrixCell cell = MatrixCell.parse(job("matrix:\n- name: go1.7\n  image: golang:1.7\n"), new EnvVars()).get(0);
+
+        ContainerSpec cellSpec = cell.spec(spec, Collections.singleton("/var/lib/jenkins/caches/go/upper"),
+                new FilePath(new File("/var/lib/jenkins/workspace/job/.matrix/go1.7")), "/mnt/ci-data/job/1");
+        List<String> args = new RecordingLauncher().docker().runDetachedCommand(cellSpec, null, "owner").toList();
+
+        assertEquals("/var/lib/jenkins/workspace/job/.matrix/go1.7", args.get(args.indexOf("--workdir") + 1));
+        assertTrue(args.toString(), args.contains("/mnt/ci-data/job/1/matrix/go1.7:" + ContainerBuildData.PATH + ":rw"));
+        assertFalse(args.toString(), args.contains("/mnt/ci-data/job/1:" + ContainerBuildData.PATH + ":rw"));
+        assertFalse(args.toString(), args.contains("/var/lib/jenkins/caches/go/upper:/go/pkg:rw"));
+        assertTrue(args.toString(), args.contains("/var/lib/jenkins:/var/lib/jenkins:rw"));
+        assertEquals("golang:1.7", args.get(args.size() - 2));
+    }
+
+    private static void assertRejected(String yaml) throws IOException {
+        try {
+            MatrixCell.parse(job(yaml), new EnvVars());
+            fail("accepted " + yaml);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static JsonNode job(String yaml) throws IOException {
+        return YAML.readTree(yaml);
+    }
+}
@@ -0,0 +1,84 @@
+package com.appscode.ci.plugins.blueprint;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Launcher which doesn't start anything, but records the commands it is given and their working directory.
+ * Processes complete immediately with a 0 status.
+ */
+final class RecordingLauncher extends Launcher {
+
+    final List<List<String>> commands = Collections.synchronizedList(new ArrayList<List<String>>());
+    final List<FilePath> directories = Collections.synchronizedList(new ArrayList<FilePath>());
+
+    RecordingLauncher() {
+        super(TaskListener.NULL, null);
+    }
+
+    /**
+     * Returns a client for the docker CLI driven through this launcher.
+     */
+    Docker docker() {
+        return new Docker("", "docker", this, new EnvVars(), false);
+    }
+
+    @Override
+    public Proc launch(ProcStarter starter) throws IOException {
+        commands.add(new ArrayList<String>(starter.cmds()));
+        directories.add(starter.pwd());
+        return new CompletedProc();
+    }
+
+    @Override
+    public Channel launchChannel(String[] cmd, OutputStream out, FilePath workDir, Map<String, String> envVars) throws IOException {
+        return null;
+    }
+
+    @Override
+    public void kill(Map<String, String> modelEnvVars) {
+    }
+
+    private static final class CompletedProc extends Proc {
+        @Override
+        public boolean isAlive() {
+            return false;
+        }
+
+        @Override
+        public void kill() {
+        }
+
+        @Override
+        public int join() {
+            return 0;
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return null;
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.appscode.ci.plugins.blueprint.tasks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import hudson.util.StreamTaskListener;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlueprintStepsTest {
+
+    private static final ObjectMapper YAML = new ObjectMapper(new YAMLFactory());
+
+    @Test
+    public void noSteps() throws Exception {
+        assertNull(BlueprintSteps.parse(job("script: make\n")));
+    }
+
+    @Test
+    public void rejectsMissingScript() throws Exception {
+        assertRejected("steps:\n- name: compile\n", "require a name and a script");
+    }
+
+    @Test
+    public void rejectsDuplicateName() throws Exception {
+        assertRejected("steps:\n- name: compile\n  script: make\n- name: compile\n  script: make all\n", "declared twice");
+    }
+
+    @Test
+    public void rejectsCollidingLogNames() throws Exception {
+        assertRejected("steps:\n- name: unit test\n  script: make test\n- name: unit_test\n  script: make check\n", "can't be told apart");
+    }
+
+    @Test
+    public void rejectsUnknownNeed() throws Exception {
+        assertRejected("steps:\n- name: lint\n  script: make lint\n  needs: [compile]\n", "needs unknown step compile");
+    }
+
+    @Test
+    public void rejectsCycle() throws Exception {
+        assertRejected("steps:\n" +
+                "- name: compile\n  script: make\n" +
+                "- name: a\n  script: make a\n  needs: [compile, b]\n" +
+                "- name: b\n  script: make b\n  needs: [a]\n", "depend on each other");
+    }
+
+    @Test
+    public void runsStepsOnceTheirNeedsSucceeded() throws Exception {
+        BlueprintSteps steps = BlueprintSteps.parse(job("steps:\n" +
+                "- name: test\n  script: make test\n  needs: [compile]\n" +
+                "- name: compile\n  script: make\n" +
+                "- name: package\n  script: make package\n  needs: [compile, test]\n"));
+        Recorder recorder = new Recorder();
+
+        assertTrue(steps.run(recorder, recorder.listener));
+        assertEquals(Arrays.asList("compile", "test", "package"), recorder.ran);
+    }
+
+    @Test
+    public void startsNoStepAfterFailure() throws Exception {
+        BlueprintSteps steps = BlueprintSteps.parse(job("steps:\n" +
+                "- name: compile\n  script: make\n" +
+                "- name: lint\n  script: make lint\n" +
+                "- name: test\n  script: make test\n  needs: [lint]\n" +
+                "- name: package\n  script: make package\n  needs: [compile]\n"));
+        final Recorder recorder = new Recorder();
+        recorder.statuses.put("compile", 2);
+        // lint only completes once the failure of compile is known, so test could start right after it
+        recorder.waits.put("lint", "[compile] exited with 2");
+
+        assertFalse(steps.run(recorder, recorder.listener));
+        assertEquals(Arrays.asList("compile", "lint"), recorder.sorted());
+        String log = recorder.log();
+        assertTrue(log, log.contains("[lint] exited with 0"));
+        assertTrue(log, log.contains("Steps not run: [") && log.contains("test") && log.contains("package"));
+    }
+
+    @Test
+    public void stepFailingToRunFails() throws Exception {
+        BlueprintSteps steps = BlueprintSteps.parse(job("steps:\n" +
+                "- name: compile\n  script: make\n" +
+                "- name: test\n  script: make test\n  needs: [compile]\n"));
+        Recorder recorder = new Recorder();
+        recorder.failures.add("compile");
+
+        assertFalse(steps.run(recorder, recorder.listener));
+        assertEquals(Collections.singletonList("compile"), recorder.ran);
+        String log = recorder.log();
+        assertTrue(log, log.contains("[compile] failed to run"));
+        assertTrue(log, log.contains("[compile] exited with -1"));
+        assertTrue(log, log.contains("Steps not run: [test]"));
+    }
+
+    private static void assertRejected(String yaml, String message) throws Exception {
+        try {
+            BlueprintSteps.parse(job(yaml));
+            fail("accepted " + yaml);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private static JsonNode job(String yaml) throws IOException {
+        return YAML.readTree(yaml);
+    }
+
+    /**
+     * Records the steps run, with the status or failure configured for each of them, 0 by default.
+     */
+    private static final class Recorder implements BlueprintSteps.Runner {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final StreamTaskListener listener = new StreamTaskListener(out);
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        final Map<String, Integer> statuses = new HashMap<String, Integer>();
+        final Map<String, String> waits = new HashMap<String, String>();
+        final List<String> failures = new ArrayList<String>();
+
+        public int run(String step) throws Exception {
+            ran.add(step);
+            String awaited = waits.get(step);
+            if (awaited != null) {
+                long deadline = System.currentTimeMillis() + 10000;
+                while (!log().contains(awaited)) {
+                    if (System.currentTimeMillis() > deadline) {
+                        throw new AssertionError("No " + awaited + " in " + log());
+                    }
+                    Thread.sleep(10);
+                }
+            }
+            if (failures.contains(step)) {
+                throw new IOException("No shell");
+            }
+            Integer status = statuses.get(step);
+            return status != null ? status : 0;
+        }
+
+        List<String> sorted() {
+            List<String> sorted = new ArrayList<String>(ran);
+            Collections.sort(sorted);
+            return sorted;
+        }
+
+        String log() {
+            listener.getLogger().flush();
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.appscode.ci.plugins.blueprint.tasks;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StepLogTest {
+
+    /** Lines of the test output, 11 bytes each. */
+    private static final int LINES = 20000;
+
+    /** Lines written before the first member is complete: the first ones to reach 64 KiB. */
+    private static final int FIRST_MEMBER = (64 * 1024 + 10) / 11;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void readsBackAllOutput() throws Exception {
+        File dir = write("unit", LINES);
+
+        StringWriter page = new StringWriter();
+        long next = StepLog.read(dir, "unit", 0, Integer.MAX_VALUE, null, new PrintWriter(page));
+
+        assertEquals(LINES, next);
+        assertEquals(lines(0, LINES), page.toString());
+        assertTrue(new File(dir, "unit.log.gz").length() < LINES * 11);
+    }
+
+    @Test
+    public void pagesAcrossMembers() throws Exception {
+        File dir = write("unit", LINES);
+
+        StringBuilder all = new StringBuilder();
+        long from = 0;
+        while (from < LINES) {
+            StringWriter page = new StringWriter();
+            long next = StepLog.read(dir, "unit", from, 1000, null, new PrintWriter(page));
+            assertEquals(Math.min(from + 1000, LINES), next);
+            assertEquals(lines((int) from, (int) next), page.toString());
+            all.append(page);
+            from = next;
+        }
+        assertEquals(lines(0, LINES), all.toString());
+
+        // a page starting in the middle of a member, and ending in the next one
+        StringWriter page = new StringWriter();
+        StepLog.read(dir, "unit", FIRST_MEMBER - 5, 10, null, new PrintWriter(page));
+        assertEquals(lines(FIRST_MEMBER - 5, FIRST_MEMBER + 5), page.toString());
+    }
+
+    @Test
+    public void searches() throws Exception {
+        File dir = write("unit", LINES);
+
+        StringWriter page = new StringWriter();
+        StepLog.read(dir, "unit", 0, 10, "line 12345", new PrintWriter(page));
+        assertEquals(lines(12345, 12346), page.toString());
+
+        // matches are only looked for from the given line on
+        page = new StringWriter();
+        StepLog.read(dir, "unit", 12346, 10, "line 12345", new PrintWriter(page));
+        assertEquals("", page.toString());
+
+        page = new StringWriter();
+        long next = StepLog.read(dir, "unit", 0, 3, "line 1999", new PrintWriter(page));
+        assertEquals(lines(19990, 19993), page.toString());
+        assertEquals(19993, next);
+    }
+
+    @Test
+    public void readsWhileWritten() throws Exception {
+        File dir = tmp.newFolder();
+        StepLog log = new StepLog(dir, "unit");
+        try {
+            for (int i = 0; i < FIRST_MEMBER + 100; i++) {
+                log.write(line(i).getBytes("UTF-8"));
+            }
+
+            // the lines of the member being written may not be readable yet
+            StringWriter page = new StringWriter();
+            long next = StepLog.read(dir, "unit", 0, Integer.MAX_VALUE, null, new PrintWriter(page));
+            assertTrue(next >= FIRST_MEMBER);
+            assertEquals(lines(0, (int) next), page.toString());
+
+            page = new StringWriter();
+            StepLog.read(dir, "unit", FIRST_MEMBER - 10, 10, null, new PrintWriter(page));
+            assertEquals(lines(FIRST_MEMBER - 10, FIRST_MEMBER), page.toString());
+        } finally {
+            log.close();
+        }
+
+        StringWriter page = new StringWriter();
+        StepLog.read(dir, "unit", 0, Integer.MAX_VALUE, null, new PrintWriter(page));
+        assertEquals(lines(0, FIRST_MEMBER + 100), page.toString());
+    }
+
+    @Test
+    public void readsNothingBeforeAnyOutput() throws Exception {
+        File dir = write("unit", 0);
+
+        StringWriter page = new StringWriter();
+        assertEquals(0, StepLog.read(dir, "unit", 0, 10, null, new PrintWriter(page)));
+        assertEquals("", page.toString());
+    }
+
+    private File write(String step, int count) throws IOException {
+        File dir = tmp.newFolder();
+        StepLog log = new StepLog(dir, StepLog.fileName(step));
+        // written in chunks of many lines, as process output comes
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            out.append(line(i));
+            if (out.length() > 4000) {
+                log.write(out.toString().getBytes("UTF-8"));
+                out.setLength(0);
+            }
+        }
+        log.write(out.toString().getBytes("UTF-8"));
+        log.close();
+        return dir;
+    }
+
+    private static String line(int i) {
+        return String.format("line %05d", i) + "\n";
+    }
+
+    /**
+     * Lines as read back through a print writer.
+     */
+    private static String lines(int from, int to) {
+        StringWriter expected = new StringWriter();
+        PrintWriter w = new PrintWriter(expected);
+        for (int i = from; i < to; i++) {
+            w.println(line(i).trim());
+        }
+        w.flush();
+        return expected.toString();
+    }
+}